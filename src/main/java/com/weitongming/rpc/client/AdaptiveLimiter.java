@@ -0,0 +1,122 @@
+package com.weitongming.rpc.client;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 服务节点级的自适应并发上限（梯度算法），由每次调用的响应时间驱动
+ * 样本按窗口汇总，每收集约一个上限数量的样本（大致一个往返）调整一次：
+ * 窗口平均响应时间代表当前延迟，长期响应时间（窗口平均的指数加权，约100个窗口）代表节点正常时的延迟，
+ * gradient = clamp(1.5 * 长期 / 当前, 0.5, 1)，新上限 = 上限 * gradient + sqrt(上限)，再与旧上限平滑
+ * 延迟上升时上限收缩，延迟平稳时每个窗口增加约sqrt(上限)；窗口内出现超时或连接失败时上限乘以0.9
+ * 窗口内在途数不到上限一半时不增长，避免空闲时上限虚高
+ *
+ * @author tim.wei
+ */
+public class AdaptiveLimiter {
+    private static final double TOLERANCE = 1.5;
+    private static final double SMOOTHING = 0.2;
+    private static final double BACKOFF_RATIO = 0.9;
+    private static final double LONG_WINDOWS = 100;
+    private static final int MIN_WINDOW_SAMPLES = 10;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    //当前上限，样本更新在锁内，读不加锁
+    private volatile int limit;
+    private double estimatedLimit;
+    private double longRtt;
+    //当前窗口的汇总，只在锁内读写
+    private int windowSamples;
+    private long windowRttSum;
+    private int windowRttCount;
+    private int windowMaxInFlight;
+    private boolean windowDropped;
+
+    public AdaptiveLimiter() {
+        this(20, 1, 1000);
+    }
+
+    public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit) {
+        this.limit = initialLimit;
+        this.estimatedLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+    }
+
+    public boolean tryAcquire() {
+        for (;;) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    //归还额度并记录样本；rttNanos小于0表示没有样本（例如调用被取消），dropped表示超时或连接失败
+    public void release(long rttNanos, boolean dropped) {
+        int current = inFlight.getAndDecrement();
+        if (rttNanos >= 0 || dropped) {
+            update(rttNanos, current, dropped);
+        }
+    }
+
+    private synchronized void update(long rttNanos, int inFlight, boolean dropped) {
+        windowSamples++;
+        if (dropped) {
+            windowDropped = true;
+        } else {
+            windowRttSum += rttNanos;
+            windowRttCount++;
+        }
+        windowMaxInFlight = Math.max(windowMaxInFlight, inFlight);
+        if (windowSamples < Math.max(MIN_WINDOW_SAMPLES, limit)) {
+            return;
+        }
+        double newLimit = estimatedLimit;
+        if (windowDropped) {
+            newLimit = estimatedLimit * BACKOFF_RATIO;
+        } else {
+            double shortRtt = (double) windowRttSum / windowRttCount;
+            if (longRtt == 0) {
+                longRtt = shortRtt;
+            } else {
+                longRtt += (shortRtt - longRtt) / LONG_WINDOWS;
+            }
+            //当前延迟明显低于长期延迟时（例如节点恢复），长期延迟加快回落
+            if (longRtt / shortRtt > 2) {
+                longRtt *= 0.95;
+            }
+            //在途数远低于上限时延迟不能说明上限是否合适
+            if (windowMaxInFlight >= estimatedLimit / 2) {
+                double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRtt / shortRtt));
+                newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+                newLimit = estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+            }
+        }
+        estimatedLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+        limit = (int) estimatedLimit;
+        windowSamples = 0;
+        windowRttSum = 0;
+        windowRttCount = 0;
+        windowMaxInFlight = 0;
+        windowDropped = false;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    //当前在途请求数
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    //剩余额度
+    public int getAvailable() {
+        return limit - inFlight.get();
+    }
+}
@@ -1,16 +1,23 @@
 package com.weitongming.rpc.client;
 
+import com.weitongming.rpc.client.loadbalance.ConsistentHashRing;
+import com.weitongming.rpc.client.loadbalance.LoadBalancer;
+import com.weitongming.rpc.client.loadbalance.RoundRobinLoadBalancer;
+import com.weitongming.rpc.protocol.NettyTransport;
+import com.weitongming.rpc.protocol.RpcRequest;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.EventExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -26,25 +33,68 @@ import java.util.concurrent.locks.ReentrantLock;
 public class ConnectManage {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ConnectManage.class);
+    //等待在途额度时单次最长等待，兜底没有唤醒的情况（例如服务在途数由其他连接释放）
+    private static final long MAX_CAPACITY_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
     //高并发同步
     private volatile static ConnectManage connectManage;
-    //事件循环
-    EventLoopGroup eventLoopGroup = new NioEventLoopGroup(4);
+    //事件循环，第一次连接服务节点时按传输配置创建
+    private volatile EventLoopGroup eventLoopGroup;
+    //eventLoopGroup中的各个事件循环，连接按下标固定分配
+    private volatile EventLoop[] eventLoops;
+    private volatile boolean epoll;
+    //传输配置，需在第一次updateConnectedServer之前设置
+    private volatile boolean nativeTransport;
+    private volatile int ioThreads = 4;
+    private volatile boolean tcpNoDelay = true;
+    private final AtomicInteger eventLoopSequence = new AtomicInteger();
     //线程池
     private static ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor
             (16, 16, 600L, TimeUnit.SECONDS,
                     new ArrayBlockingQueue<Runnable>(65536));
     //高并发同步RpcClientHandler集合
     private CopyOnWriteArrayList<RpcClientHandler> connectedHandlers = new CopyOnWriteArrayList<>();
-    //高并发同步InetSocketAddress 、RpcClientHandler的map
-    private Map<InetSocketAddress, RpcClientHandler> connectedServerNodes = new ConcurrentHashMap<>();
-    //private Map<InetSocketAddress, Channel> connectedServerNodes = new ConcurrentHashMap<>();
+    //connectedHandlers的不可变快照，每次变更后重建，选择处理机时直接读取，不再复制
+    private volatile RpcClientHandler[] handlerSnapshot = new RpcClientHandler[0];
+    //服务接口名 -> 负载均衡策略，未配置的服务使用默认策略
+    private final ConcurrentHashMap<String, LoadBalancer> loadBalancers = new ConcurrentHashMap<>();
+    private volatile LoadBalancer defaultLoadBalancer = new RoundRobinLoadBalancer();
+    //按路由键选择节点的一致性hash环，随服务节点列表增量调整
+    private final ConsistentHashRing hashRing = new ConsistentHashRing();
+    //服务列表中的节点，每个节点持有connectionsPerNode条连接
+    private Map<InetSocketAddress, ServerNode> connectedServerNodes = new ConcurrentHashMap<>();
     //可重入锁，激烈争用情况下更佳的性能 ！！！！！务必记得释放锁
     private ReentrantLock lock = new ReentrantLock();
     private Condition connected = lock.newCondition();
+    //请求完成或连接恢复可写时唤醒一个等待在途额度的调用方
+    private final ReentrantLock capacityLock = new ReentrantLock();
+    private final Condition capacityAvailable = capacityLock.newCondition();
+    private final AtomicInteger capacityWaiters = new AtomicInteger();
     protected long connectTimeoutMillis = 6000;
-    //线程安全的加减操作接口
-    private AtomicInteger roundRobin = new AtomicInteger(0);
+    //连接失败或断开后的重连间隔
+    protected long reconnectIntervalMillis = 1000;
+    //每个服务节点的连接数，对之后加入的节点生效
+    private volatile int connectionsPerNode = 1;
+    //每条连接的在途请求上限，小于等于0表示不限制
+    private volatile int maxPendingPerConnection = PendingTable.DEFAULT_CAPACITY;
+    //发送缓冲区高低水位，超过高水位后连接不可写，不再接收新请求；0表示使用netty默认值，对之后建立的连接生效
+    private volatile int writeBufferLowWaterMark;
+    private volatile int writeBufferHighWaterMark;
+    //服务接口名 -> 服务级在途请求上限，未配置的服务不限制
+    private final ConcurrentHashMap<String, InFlightLimiter> inFlightLimiters = new ConcurrentHashMap<>();
+    //按响应时间自动调整每个服务节点的并发上限，对之后加入的节点生效
+    private volatile boolean adaptiveConcurrency;
+    //合并写：积压多少个请求立即flush，0表示不合并
+    private volatile int writeBatchSize;
+    //合并写：最长等待微秒数，0表示下一次事件循环即flush
+    private volatile long writeBatchDelayMicros;
+    //未通过@RpcTimeout配置的调用使用的默认超时毫秒数，小于等于0表示不超时
+    private volatile long defaultTimeoutMillis = 30000;
+    //对冲请求的全局额度，默认最多为总请求数的5%
+    private final HedgeBudget hedgeBudget = new HedgeBudget(0.05);
+    //过载重试的全局额度，默认最多为总请求数的20%，所有节点都过载时不会放大请求量
+    private final HedgeBudget retryBudget = new HedgeBudget(0.2);
+    //调用方标识，随请求发给服务端用于公平排队，为null时服务端使用本机地址
+    private volatile String callerId;
     private volatile boolean isRuning = true;
     //私有构造函数
     private ConnectManage() {
@@ -61,104 +111,282 @@ public class ConnectManage {
         return connectManage;
     }
     //更新已连接服务
-    public void updateConnectedServer(List<String> allServerAddress) {
+    public synchronized void updateConnectedServer(List<String> allServerAddress) {
         if (allServerAddress != null) {
-            //获取所有可用服务
-            if (allServerAddress.size() > 0) {
-                //update local serverNodes cache
-                HashSet<InetSocketAddress> newAllServerNodeSet = new HashSet<InetSocketAddress>();
-                //遍历zk
-                for (int i = 0; i < allServerAddress.size(); ++i) {
-                    //拆分
-                    String[] array = allServerAddress.get(i).split(":");
-                    //获取ip和端口
-                    if (array.length == 2) { // Should check IP and port
-                        String host = array[0];
-                        int port = Integer.parseInt(array[1]);
-                        final InetSocketAddress remotePeer = new InetSocketAddress(host, port);
-                        //往新的服务节点列表添加
-                        newAllServerNodeSet.add(remotePeer);
-                    }
+            //update local serverNodes cache
+            HashSet<InetSocketAddress> newAllServerNodeSet = new HashSet<InetSocketAddress>();
+            //遍历zk
+            for (int i = 0; i < allServerAddress.size(); ++i) {
+                //拆分
+                String[] array = allServerAddress.get(i).split(":");
+                //获取ip和端口
+                if (array.length == 2) { // Should check IP and port
+                    String host = array[0];
+                    int port = Integer.parseInt(array[1]);
+                    final InetSocketAddress remotePeer = new InetSocketAddress(host, port);
+                    //往新的服务节点列表添加
+                    newAllServerNodeSet.add(remotePeer);
                 }
+            }
+            if (newAllServerNodeSet.isEmpty()) { // No available server node ( All server nodes are down )
+                LOGGER.error("没有可用的服务节点，所有的服务节点都已宕机！！");
+            }
+            hashRing.update(newAllServerNodeSet);
+            ensureEventLoops();
 
-                // 添加新的服务节点
-                for (final InetSocketAddress serverNodeAddress : newAllServerNodeSet) {
-                    //遍历新的服务节点列表，不存在
-                    if (!connectedServerNodes.keySet().contains(serverNodeAddress)) {
+            // 添加新的服务节点
+            int connections = connectionsPerNode;
+            for (final InetSocketAddress serverNodeAddress : newAllServerNodeSet) {
+                //遍历新的服务节点列表，不存在
+                if (!connectedServerNodes.containsKey(serverNodeAddress)) {
+                    //同一节点的各条连接依次落在不同的事件循环上
+                    ServerNode serverNode = new ServerNode(serverNodeAddress, connections, eventLoopSequence.getAndAdd(connections),
+                            adaptiveConcurrency ? new AdaptiveLimiter() : null);
+                    connectedServerNodes.put(serverNodeAddress, serverNode);
+                    for (int slot = 0; slot < connections; slot++) {
                         //链接服务节点
-                        connectServerNode(serverNodeAddress);
+                        connectServerNode(serverNode, slot);
                     }
                 }
+            }
 
-                // 遍历新的服务节点列表并清除无效节点
-                for (int i = 0; i < connectedHandlers.size(); ++i) {
-                    RpcClientHandler connectedServerHandler = connectedHandlers.get(i);
-                    SocketAddress remotePeer = connectedServerHandler.getRemotePeer();
-                    //如果新的服务节点之中已经不存在节点
-                    if (!newAllServerNodeSet.contains(remotePeer)) {
-                        LOGGER.info("远程节点已无效：" + remotePeer);
-                        RpcClientHandler handler = connectedServerNodes.get(remotePeer);
-                        handler.close();
-                        connectedServerNodes.remove(remotePeer);
-                        connectedHandlers.remove(connectedServerHandler);
+            // 遍历新的服务节点列表并清除无效节点
+            for (ServerNode serverNode : connectedServerNodes.values()) {
+                //如果新的服务节点之中已经不存在节点
+                if (!newAllServerNodeSet.contains(serverNode.getAddress())) {
+                    LOGGER.info("远程节点已无效：" + serverNode.getAddress());
+                    connectedServerNodes.remove(serverNode.getAddress());
+                    serverNode.remove();
+                    for (int slot = 0; slot < serverNode.getConnections(); slot++) {
+                        RpcClientHandler handler = serverNode.get(slot);
+                        if (handler != null) {
+                            removeHandler(handler);
+                            handler.close();
+                        }
                     }
                 }
-
-            } else { // No available server node ( All server nodes are down )
-                LOGGER.error("没有可用的服务节点，所有的服务节点都已宕机！！");
-                for (final RpcClientHandler connectedServerHandler : connectedHandlers) {
-                    SocketAddress remotePeer = connectedServerHandler.getRemotePeer();
-                    RpcClientHandler handler = connectedServerNodes.get(remotePeer);
-                    handler.close();
-                    connectedServerNodes.remove(connectedServerHandler);
-                }
-                connectedHandlers.clear();
             }
         }
     }
-    //重新连接
+    //重新连接：关闭该连接，所在槽位会自动重连
     public void  reconnect(final RpcClientHandler handler, final SocketAddress remotePeer){
-        //先移除
         if(handler!=null){
-            connectedHandlers.remove(handler);
-            connectedServerNodes.remove(handler.getRemotePeer());
+            removeHandler(handler);
+            handler.close();
         }
-        connectServerNode((InetSocketAddress)remotePeer);
     }
 
-    private void connectServerNode(final InetSocketAddress remotePeer) {
+    private void connectServerNode(final ServerNode serverNode, final int slot) {
+        final EventLoop eventLoop = eventLoops[serverNode.eventLoopIndex(slot) % eventLoops.length];
         threadPoolExecutor.submit(new Runnable() {
             @Override
             public void run() {
+                final InetSocketAddress remotePeer = serverNode.getAddress();
                 Bootstrap b = new Bootstrap();
-                b.group(eventLoopGroup)
-                        .channel(NioSocketChannel.class)
-                        .handler(new RpcClientInitializer());
+                b.group(eventLoop)
+                        .channel(NettyTransport.channelClass(epoll))
+                        .option(ChannelOption.TCP_NODELAY, tcpNoDelay)
+                        .handler(new RpcClientInitializer(writeBatchSize, writeBatchDelayMicros));
                 //通过bootstrap连接远程节点并返回Channel异步操作的结果
+                if (writeBufferHighWaterMark > 0) {
+                    b.option(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, writeBufferHighWaterMark);
+                }
+                if (writeBufferLowWaterMark > 0) {
+                    b.option(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, writeBufferLowWaterMark);
+                }
                 ChannelFuture channelFuture = b.connect(remotePeer);
                 channelFuture.addListener(new ChannelFutureListener() {
                     @Override
                     public void operationComplete(final ChannelFuture channelFuture) throws Exception {
-                        if (channelFuture.isSuccess()) {
-                            LOGGER.debug("连接到远程节点成功，远程节点为 = " + remotePeer);
-                            //连接成功后获取handler处理机
-                            RpcClientHandler handler = channelFuture.channel().pipeline().get(RpcClientHandler.class);
-                            //添加处理机
-                            addHandler(handler);
+                        if (!channelFuture.isSuccess()) {
+                            LOGGER.warn("连接远程节点失败，稍后重连，远程节点为 = " + remotePeer);
+                            scheduleReconnect(serverNode, slot, eventLoop);
+                            return;
                         }
+                        LOGGER.debug("连接到远程节点成功，远程节点为 = " + remotePeer);
+                        //连接成功后获取handler处理机
+                        final RpcClientHandler handler = channelFuture.channel().pipeline().get(RpcClientHandler.class);
+                        if (serverNode.isRemoved() || !isRuning) {
+                            handler.close();
+                            return;
+                        }
+                        handler.setNodeLimiter(serverNode.getLimiter());
+                        serverNode.set(slot, handler);
+                        //添加处理机
+                        addHandler(handler);
+                        //连接断开后只重连这一个槽位
+                        channelFuture.channel().closeFuture().addListener(new ChannelFutureListener() {
+                            @Override
+                            public void operationComplete(ChannelFuture future) throws Exception {
+                                serverNode.clear(slot, handler);
+                                removeHandler(handler);
+                                scheduleReconnect(serverNode, slot, eventLoop);
+                            }
+                        });
                     }
                 });
             }
         });
     }
+
+    private void scheduleReconnect(final ServerNode serverNode, final int slot, EventLoop eventLoop) {
+        if (!isRuning || serverNode.isRemoved()) {
+            return;
+        }
+        eventLoop.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (isRuning && !serverNode.isRemoved()) {
+                    connectServerNode(serverNode, slot);
+                }
+            }
+        }, reconnectIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
     //添加处理机
     private void addHandler(RpcClientHandler handler) {
         connectedHandlers.add(handler);
-        InetSocketAddress remoteAddress = (InetSocketAddress) handler.getChannel().remoteAddress();
-        connectedServerNodes.put(remoteAddress, handler);
+        refreshSnapshot();
         signalAvailableHandler();
     }
 
+    private void removeHandler(RpcClientHandler handler) {
+        if (connectedHandlers.remove(handler)) {
+            refreshSnapshot();
+        }
+    }
+
+    private void refreshSnapshot() {
+        handlerSnapshot = connectedHandlers.toArray(new RpcClientHandler[0]);
+    }
+
+    //为服务接口指定负载均衡策略
+    public void setLoadBalancer(Class<?> serviceClass, LoadBalancer loadBalancer) {
+        loadBalancers.put(serviceClass.getName(), loadBalancer);
+    }
+
+    public void setDefaultLoadBalancer(LoadBalancer defaultLoadBalancer) {
+        this.defaultLoadBalancer = defaultLoadBalancer;
+    }
+
+    public void setConnectionsPerNode(int connectionsPerNode) {
+        if (connectionsPerNode < 1) {
+            throw new IllegalArgumentException("connectionsPerNode must be positive: " + connectionsPerNode);
+        }
+        this.connectionsPerNode = connectionsPerNode;
+    }
+
+    public void setMaxPendingPerConnection(int maxPendingPerConnection) {
+        this.maxPendingPerConnection = maxPendingPerConnection;
+    }
+
+    public void setWriteBufferWaterMark(int low, int high) {
+        if (low > high) {
+            throw new IllegalArgumentException("low water mark " + low + " > high water mark " + high);
+        }
+        this.writeBufferLowWaterMark = low;
+        this.writeBufferHighWaterMark = high;
+    }
+
+    public void setAdaptiveConcurrency(boolean adaptiveConcurrency) {
+        this.adaptiveConcurrency = adaptiveConcurrency;
+    }
+
+    //为服务接口设置在途请求上限，小于等于0表示取消限制
+    public void setMaxInFlight(Class<?> serviceClass, int limit) {
+        if (limit <= 0) {
+            inFlightLimiters.remove(serviceClass.getName());
+        } else {
+            inFlightLimiters.put(serviceClass.getName(), new InFlightLimiter(limit));
+        }
+    }
+
+    //服务的在途请求限流器，未限制时返回null
+    public InFlightLimiter getInFlightLimiter(String serviceName) {
+        return inFlightLimiters.get(serviceName);
+    }
+
+    //所有连接的在途请求总数
+    public int getPendingCount() {
+        int pending = 0;
+        for (RpcClientHandler handler : handlerSnapshot) {
+            pending += handler.getPendingCount();
+        }
+        return pending;
+    }
+
+    //使用原生epoll传输，不可用时回退到NIO
+    public void setNativeTransport(boolean nativeTransport) {
+        this.nativeTransport = nativeTransport;
+    }
+
+    //客户端IO线程数
+    public void setIoThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+    }
+
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    //只在updateConnectedServer中调用，已加锁
+    private void ensureEventLoops() {
+        if (eventLoopGroup != null) {
+            return;
+        }
+        boolean epoll = NettyTransport.useEpoll(nativeTransport);
+        EventLoopGroup group = NettyTransport.newEventLoopGroup(epoll, ioThreads);
+        List<EventLoop> loops = new ArrayList<>();
+        for (EventExecutor executor : group) {
+            loops.add((EventLoop) executor);
+        }
+        this.epoll = epoll;
+        this.eventLoops = loops.toArray(new EventLoop[0]);
+        this.eventLoopGroup = group;
+    }
+
+    //开启合并写，对之后建立的连接生效
+    public void setWriteBatch(int writeBatchSize, long writeBatchDelayMicros) {
+        this.writeBatchSize = writeBatchSize;
+        this.writeBatchDelayMicros = writeBatchDelayMicros;
+    }
+
+    public long getDefaultTimeoutMillis() {
+        return defaultTimeoutMillis;
+    }
+
+    public void setDefaultTimeoutMillis(long defaultTimeoutMillis) {
+        this.defaultTimeoutMillis = defaultTimeoutMillis;
+    }
+
+    public HedgeBudget getHedgeBudget() {
+        return hedgeBudget;
+    }
+
+    //对冲请求最多占总请求数的比例，0表示关闭对冲
+    public void setHedgeRatio(double ratio) {
+        hedgeBudget.setRatio(ratio);
+    }
+
+    public String getCallerId() {
+        return callerId;
+    }
+
+    public void setCallerId(String callerId) {
+        this.callerId = callerId;
+    }
+
+    //每发出一个请求为对冲和重试额度各存入一份
+    public void depositBudgets() {
+        hedgeBudget.deposit();
+        retryBudget.deposit();
+    }
+
+    //过载重试最多占总请求数的比例，0表示不重试
+    public void setRetryRatio(double ratio) {
+        retryBudget.setRatio(ratio);
+    }
+
     private void signalAvailableHandler() {
         lock.lock();
         //唤醒在此Lock对象上等待的所有线程
@@ -180,36 +408,214 @@ public class ConnectManage {
     }
 
     public RpcClientHandler chooseHandler() {
-        //写时复制的容器，用于高并发时读远高于写的情况
-        CopyOnWriteArrayList<RpcClientHandler> handlers = (CopyOnWriteArrayList<RpcClientHandler>) this.connectedHandlers.clone();
-        int size = handlers.size();
-        while (isRuning && size <= 0) {
+        return chooseHandler(null, null);
+    }
+
+    /**
+     * 选择一个还能接收请求的处理机，并占用节点并发上限和limiter各一个额度
+     * 负载均衡选中的连接不能接收时（不可写、连接在途数、节点并发上限），改选剩余额度最多的连接（按路由键调用除外）；
+     * 都不能接收或服务在途数达到上限时等待有请求完成，最多等待waitNanos，仍然不行或被中断返回null
+     */
+    public RpcClientHandler acquireHandler(String serviceName, RpcRequest request, Object routingKey,
+                                           InFlightLimiter limiter, long waitNanos) {
+        long deadline = System.nanoTime() + waitNanos;
+        for (;;) {
+            RpcClientHandler handler = tryAcquireHandler(serviceName, request, routingKey, limiter);
+            if (handler != null) {
+                return handler;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (waitNanos <= 0 || remaining <= 0) {
+                return null;
+            }
+            capacityWaiters.incrementAndGet();
+            capacityLock.lock();
+            try {
+                //登记等待者并加锁后再试一次，与signalCapacity配合不会错过唤醒
+                handler = tryAcquireHandler(serviceName, request, routingKey, limiter);
+                if (handler != null) {
+                    return handler;
+                }
+                capacityAvailable.awaitNanos(Math.min(remaining, MAX_CAPACITY_WAIT_NANOS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } finally {
+                capacityLock.unlock();
+                capacityWaiters.decrementAndGet();
+            }
+        }
+    }
+
+    private RpcClientHandler tryAcquireHandler(String serviceName, RpcRequest request, Object routingKey,
+                                               InFlightLimiter limiter) {
+        RpcClientHandler handler = chooseHandler(serviceName, request, routingKey);
+        if (!tryAcquire(handler)) {
+            //按路由键调用不能改选其他节点，等待该节点有额度
+            if (routingKey != null) {
+                return null;
+            }
+            handler = mostAvailableHandler();
+            if (handler == null || !tryAcquire(handler)) {
+                return null;
+            }
+        }
+        //走到这里节点额度已经占用
+        if (limiter == null || limiter.tryAcquire()) {
+            return handler;
+        }
+        AdaptiveLimiter nodeLimiter = handler.getNodeLimiter();
+        if (nodeLimiter != null) {
+            //归还刚占用的节点额度，期间尝试失败的等待者需要重新尝试
+            nodeLimiter.release(-1, false);
+            signalCapacity();
+        }
+        return null;
+    }
+
+    //在已占用额度的处理机上再占用一份节点并发额度和limiter额度，用于批量请求的其余元素，不能占用时返回false
+    public boolean acquireMore(RpcClientHandler handler, InFlightLimiter limiter) {
+        AdaptiveLimiter nodeLimiter = handler.getNodeLimiter();
+        if (nodeLimiter != null && !nodeLimiter.tryAcquire()) {
+            return false;
+        }
+        if (limiter == null || limiter.tryAcquire()) {
+            return true;
+        }
+        if (nodeLimiter != null) {
+            nodeLimiter.release(-1, false);
+            signalCapacity();
+        }
+        return false;
+    }
+
+    /**
+     * 为对冲请求选择一个不在exclude节点上、能接收请求的处理机，并像acquireHandler一样占用额度，不等待；
+     * 同时取出一次对冲额度，额度不足或没有其他节点可用时返回null
+     */
+    public RpcClientHandler acquireHedgeHandler(SocketAddress exclude, InFlightLimiter limiter) {
+        return acquireOtherHandler(exclude, limiter, hedgeBudget);
+    }
+
+    //为过载重试选择exclude以外的处理机，取出一次重试额度，其余同acquireHedgeHandler
+    public RpcClientHandler acquireRetryHandler(SocketAddress exclude, InFlightLimiter limiter) {
+        return acquireOtherHandler(exclude, limiter, retryBudget);
+    }
+
+    private RpcClientHandler acquireOtherHandler(SocketAddress exclude, InFlightLimiter limiter, HedgeBudget budget) {
+        if (!budget.tryWithdraw()) {
+            return null;
+        }
+        RpcClientHandler[] handlers = this.handlerSnapshot;
+        int start = ThreadLocalRandom.current().nextInt(Math.max(1, handlers.length));
+        for (int i = 0; i < handlers.length; i++) {
+            RpcClientHandler handler = handlers[(start + i) % handlers.length];
+            if (exclude != null && exclude.equals(handler.getRemotePeer()) || !tryAcquire(handler)) {
+                continue;
+            }
+            if (limiter == null || limiter.tryAcquire()) {
+                return handler;
+            }
+            AdaptiveLimiter nodeLimiter = handler.getNodeLimiter();
+            if (nodeLimiter != null) {
+                nodeLimiter.release(-1, false);
+                signalCapacity();
+            }
+            break;
+        }
+        budget.refund();
+        return null;
+    }
+
+    //有在途额度释放，没有等待者时只有一次原子读；等待者要的服务和节点各不相同，被唤醒的一个未必能用上
+    //释放的额度，因此唤醒全部等待者各自重试，避免额度空闲而其余等待者睡到单次等待上限
+    void signalCapacity() {
+        if (capacityWaiters.get() > 0) {
+            capacityLock.lock();
+            try {
+                capacityAvailable.signalAll();
+            } finally {
+                capacityLock.unlock();
+            }
+        }
+    }
+
+    //检查连接能否接收请求，并占用所在节点的并发额度
+    private boolean tryAcquire(RpcClientHandler handler) {
+        if (!handler.canAccept(maxPendingPerConnection)) {
+            return false;
+        }
+        AdaptiveLimiter nodeLimiter = handler.getNodeLimiter();
+        return nodeLimiter == null || nodeLimiter.tryAcquire();
+    }
+
+    //能接收请求且节点剩余额度最多的连接，没有时返回null
+    private RpcClientHandler mostAvailableHandler() {
+        RpcClientHandler best = null;
+        int bestAvailable = 0;
+        for (RpcClientHandler handler : handlerSnapshot) {
+            if (!handler.canAccept(maxPendingPerConnection)) {
+                continue;
+            }
+            AdaptiveLimiter nodeLimiter = handler.getNodeLimiter();
+            int available = nodeLimiter == null ? Integer.MAX_VALUE : nodeLimiter.getAvailable();
+            if (available > bestAvailable) {
+                best = handler;
+                bestAvailable = available;
+            }
+        }
+        return best;
+    }
+
+    //按路由键在一致性hash环上选择处理机，键为null或环上没有可用连接时按负载均衡策略选择
+    public RpcClientHandler chooseHandler(String serviceName, RpcRequest request, Object routingKey) {
+        if (routingKey != null) {
+            RpcClientHandler handler = hashRing.select(routingKey, connectedServerNodes);
+            if (handler != null) {
+                return handler;
+            }
+        }
+        return chooseHandler(serviceName, request);
+    }
+
+    //按服务配置的负载均衡策略选择处理机，没有可用连接时等待
+    public RpcClientHandler chooseHandler(String serviceName, RpcRequest request) {
+        RpcClientHandler[] handlers = this.handlerSnapshot;
+        while (isRuning && handlers.length == 0) {
             try {
                 //等待可冲入锁
                 boolean available = waitingForHandler();
                 if (available) {
-                    handlers = (CopyOnWriteArrayList<RpcClientHandler>) this.connectedHandlers.clone();
-                    size = handlers.size();
+                    handlers = this.handlerSnapshot;
                 }
             } catch (InterruptedException e) {
                 LOGGER.error("Waiting for available node is interrupted! ", e);
                 throw new RuntimeException("Can't connect any servers!", e);
             }
         }
+        if (handlers.length == 0) {
+            throw new IllegalStateException("ConnectManage is stopped");
+        }
+        LoadBalancer loadBalancer = serviceName == null ? null : loadBalancers.get(serviceName);
+        if (loadBalancer == null) {
+            loadBalancer = defaultLoadBalancer;
+        }
         //返回处理机
-        int index = (roundRobin.getAndAdd(1) + size) % size;
-        return handlers.get(index);
+        return loadBalancer.select(handlers, request);
     }
     //关闭
     public void stop(){
         isRuning = false;
-        for (int i = 0; i < connectedHandlers.size(); ++i) {
-            RpcClientHandler connectedServerHandler = connectedHandlers.get(i);
+        //关闭时会从connectedHandlers中移除，遍历快照
+        for (RpcClientHandler connectedServerHandler : handlerSnapshot) {
             connectedServerHandler.close();
         }
         signalAvailableHandler();
         threadPoolExecutor.shutdown();
         //优雅退出
-        eventLoopGroup.shutdownGracefully();
+        EventLoopGroup eventLoopGroup = this.eventLoopGroup;
+        if (eventLoopGroup != null) {
+            eventLoopGroup.shutdownGracefully();
+        }
     }
 }
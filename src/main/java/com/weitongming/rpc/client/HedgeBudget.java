@@ -0,0 +1,65 @@
+package com.weitongming.rpc.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 全局对冲额度：每发出一个请求存入ratio次对冲额度，每次对冲取出一次，额度不足时不对冲，
+ * 对冲带来的额外请求因此不超过总请求数的ratio；额度最多累积MAX_BURST次，避免空闲后集中对冲
+ * @author tim.wei
+ */
+public class HedgeBudget {
+    //额度以千分之一次为单位
+    private static final long UNIT = 1000;
+    private static final long MAX_BURST = 100;
+
+    private final AtomicLong balance = new AtomicLong();
+    //每个请求存入的额度，为0时关闭对冲
+    private volatile long depositPerRequest;
+
+    public HedgeBudget(double ratio) {
+        setRatio(ratio);
+    }
+
+    public void setRatio(double ratio) {
+        if (ratio < 0 || ratio > 1) {
+            throw new IllegalArgumentException("Hedge ratio must be between 0 and 1: " + ratio);
+        }
+        this.depositPerRequest = Math.round(ratio * UNIT);
+    }
+
+    public boolean isEnabled() {
+        return depositPerRequest > 0;
+    }
+
+    //额度已满时只有一次读
+    public void deposit() {
+        long deposit = depositPerRequest;
+        long max = MAX_BURST * UNIT;
+        for (;;) {
+            long current = balance.get();
+            if (deposit == 0 || current >= max) {
+                return;
+            }
+            if (balance.compareAndSet(current, Math.min(max, current + deposit))) {
+                return;
+            }
+        }
+    }
+
+    public boolean tryWithdraw() {
+        for (;;) {
+            long current = balance.get();
+            if (current < UNIT || depositPerRequest == 0) {
+                return false;
+            }
+            if (balance.compareAndSet(current, current - UNIT)) {
+                return true;
+            }
+        }
+    }
+
+    //取出的额度没有用上时退回
+    public void refund() {
+        balance.addAndGet(UNIT);
+    }
+}
@@ -0,0 +1,19 @@
+package com.weitongming.rpc.client;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 幂等方法注解，标注在服务接口方法上。同步调用在延迟时间内没有响应时，向另一个节点再发一份相同的请求（对冲请求），
+ * 先成功返回的一份作为结果，另一份取消；对冲请求占用ConnectManage上的全局对冲额度，额度用完时不再对冲
+ *
+ * @author tim.wei
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Idempotent {
+    //发出对冲请求前等待的毫秒数，小于等于0表示使用该方法最近调用耗时的p95
+    long hedgeDelayMillis() default 0;
+}
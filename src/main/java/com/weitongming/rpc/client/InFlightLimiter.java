@@ -0,0 +1,45 @@
+package com.weitongming.rpc.client;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 服务级在途请求上限，发送前占用一个额度，请求完成（响应、失败、超时或取消）时归还
+ *
+ * @author tim.wei
+ */
+public class InFlightLimiter {
+    private final int limit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    public InFlightLimiter(int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive: " + limit);
+        }
+        this.limit = limit;
+    }
+
+    public boolean tryAcquire() {
+        for (;;) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release() {
+        inFlight.decrementAndGet();
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    //当前在途请求数
+    public int getInFlight() {
+        return inFlight.get();
+    }
+}
@@ -0,0 +1,17 @@
+package com.weitongming.rpc.client;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 交互类调用注解，标注在服务接口或接口方法上，请求在服务端线程池中严格优先于其他请求执行
+ * 只用于少量对延迟敏感的调用，交互类请求过多时其他请求会一直排不上
+ *
+ * @author tim.wei
+ */
+@Target({ElementType.TYPE, ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Interactive {
+}
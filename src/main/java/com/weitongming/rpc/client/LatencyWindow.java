@@ -0,0 +1,47 @@
+package com.weitongming.rpc.client;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 最近若干次调用耗时的滑动窗口，每记录RECOMPUTE_INTERVAL个样本重新排序计算一次分位数，读取分位数只有一次volatile读
+ * @author tim.wei
+ */
+public class LatencyWindow {
+    private static final int SIZE = 1024;
+    private static final int RECOMPUTE_INTERVAL = 128;
+
+    private final double percentile;
+    //环形缓冲，写入时不加锁，重新计算时读到的个别样本可能新旧混杂，不影响估计
+    private final AtomicLongArray samples = new AtomicLongArray(SIZE);
+    private final AtomicInteger count = new AtomicInteger();
+    //样本不足RECOMPUTE_INTERVAL个时为0
+    private volatile long percentileNanos;
+
+    public LatencyWindow(double percentile) {
+        this.percentile = percentile;
+    }
+
+    public void record(long nanos) {
+        int index = count.getAndIncrement();
+        samples.lazySet(index & (SIZE - 1), nanos);
+        if ((index & (RECOMPUTE_INTERVAL - 1)) == RECOMPUTE_INTERVAL - 1) {
+            //计数溢出后窗口一直是满的
+            recompute(index >= 0 && index < SIZE ? index + 1 : SIZE);
+        }
+    }
+
+    private void recompute(int size) {
+        long[] sorted = new long[size];
+        for (int i = 0; i < size; i++) {
+            sorted[i] = samples.get(i);
+        }
+        Arrays.sort(sorted);
+        percentileNanos = sorted[Math.min(size - 1, (int) (size * percentile))];
+    }
+
+    public long getPercentileNanos() {
+        return percentileNanos;
+    }
+}
@@ -0,0 +1,17 @@
+package com.weitongming.rpc.client;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 单向调用注解，标注在返回void的服务接口方法上。调用只等待请求写出，不登记在途请求也不等待响应，
+ * 服务端执行后不返回响应；执行失败不会通知调用方，只记入服务端的ServiceStats
+ *
+ * @author tim.wei
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface OneWay {
+}
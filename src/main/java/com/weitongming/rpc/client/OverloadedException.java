@@ -0,0 +1,24 @@
+package com.weitongming.rpc.client;
+
+import java.net.SocketAddress;
+
+/**
+ * 服务端过载拒绝了请求，请求没有执行，可以换一个节点重试
+ * @author tim.wei
+ */
+public class OverloadedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final SocketAddress remotePeer;
+
+    public OverloadedException(SocketAddress remotePeer, String message) {
+        super(message + ". Remote peer: " + remotePeer);
+        this.remotePeer = remotePeer;
+    }
+
+    //拒绝请求的节点
+    public SocketAddress getRemotePeer() {
+        return remotePeer;
+    }
+}
@@ -0,0 +1,103 @@
+package com.weitongming.rpc.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 连接内的在途请求表，按数字请求id存取
+ * 请求id在连接内自增，直接取低位作为槽位下标，冲突时向后探测若干个槽位，仍冲突则放入溢出表
+ * 收到响应时对槽位做一次CAS即可认领，不需要字符串hash和装箱
+ * @author tim.wei
+ */
+public class PendingTable {
+    //默认槽位数，必须是2的幂
+    public static final int DEFAULT_CAPACITY = 16384;
+    //最大探测次数
+    private static final int MAX_PROBES = 8;
+
+    private final AtomicReferenceArray<RPCFuture> slots;
+    private final int mask;
+    //槽位探测失败时使用，正常情况下为空
+    private final ConcurrentHashMap<Long, RPCFuture> overflow = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    public PendingTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public PendingTable(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of 2: " + capacity);
+        }
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+    }
+
+    public void put(long requestId, RPCFuture future) {
+        int index = (int) requestId & mask;
+        for (int i = 0; i < MAX_PROBES; i++) {
+            if (slots.get(index) == null && slots.compareAndSet(index, null, future)) {
+                size.incrementAndGet();
+                return;
+            }
+            index = (index + 1) & mask;
+        }
+        overflow.put(requestId, future);
+        size.incrementAndGet();
+    }
+
+    /**
+     * 认领并移除请求，多个线程同时认领同一个请求时只有一个能拿到
+     */
+    public RPCFuture remove(long requestId) {
+        int index = (int) requestId & mask;
+        for (int i = 0; i < MAX_PROBES; i++) {
+            RPCFuture future = slots.get(index);
+            if (future != null && future.getRequestId() == requestId && slots.compareAndSet(index, future, null)) {
+                size.decrementAndGet();
+                return future;
+            }
+            index = (index + 1) & mask;
+        }
+        if (!overflow.isEmpty()) {
+            RPCFuture future = overflow.remove(requestId);
+            if (future != null) {
+                size.decrementAndGet();
+                return future;
+            }
+        }
+        return null;
+    }
+
+    //在途请求数
+    public int size() {
+        return Math.max(0, size.get());
+    }
+
+    /**
+     * 认领并移除全部在途请求，用于连接断开时统一失败
+     */
+    public List<RPCFuture> removeAll() {
+        List<RPCFuture> futures = new ArrayList<>();
+        for (int i = 0; i < slots.length(); i++) {
+            if (slots.get(i) != null) {
+                RPCFuture future = slots.getAndSet(i, null);
+                if (future != null) {
+                    size.decrementAndGet();
+                    futures.add(future);
+                }
+            }
+        }
+        for (Long requestId : overflow.keySet()) {
+            RPCFuture future = overflow.remove(requestId);
+            if (future != null) {
+                size.decrementAndGet();
+                futures.add(future);
+            }
+        }
+        return futures;
+    }
+}
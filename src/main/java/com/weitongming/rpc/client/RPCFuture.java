@@ -1,160 +1,177 @@
 package com.weitongming.rpc.client;
 
 import com.weitongming.rpc.protocol.RpcRequest;
+import com.weitongming.rpc.protocol.RpcProtocol;
 import com.weitongming.rpc.protocol.RpcResponse;
+import com.weitongming.rpc.protocol.SerializerFactory;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.util.Timeout;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
-import java.util.concurrent.locks.AbstractQueuedSynchronizer;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
 
 /**
  * RPCFuture for async RPC call
+ * 基于CompletableFuture，由IO线程通过CAS直接完成，不加锁也不切换线程
+ * 续接操作可以在完成线程内执行（thenApply、whenComplete等非Async方法，注意此时运行在IO线程上，不要阻塞），
+ * 也可以通过Async方法交给指定线程池执行；addCallback默认交给RpcClient的回调线程池
+ * 同时作为请求写出的监听器，写出失败（例如编码出错）时立即失败，不必等到超时
  * Created by tim.wei on 2017-03-15.
  */
-public class RPCFuture implements Future<Object> {
+public class RPCFuture extends CompletableFuture<Object> implements ChannelFutureListener {
     private static final Logger LOGGER = LoggerFactory.getLogger(RPCFuture.class);
 
-    private Sync sync;
     private RpcRequest request;
-    private RpcResponse response;
-    private long startTime;
+    private long startNanos;
 
     private long responseTimeThreshold = 5000;
 
-    private List<AsyncRPCCallback> pendingCallbacks = new ArrayList<AsyncRPCCallback>();
-    private ReentrantLock lock = new ReentrantLock();
+    //所在连接的在途表，取消时从中摘除
+    private volatile PendingTable pendingTable;
+    //服务级在途额度，完成时归还，未限制时为null
+    private volatile InFlightLimiter limiter;
+    //节点自适应并发上限，完成时归还并提交响应时间样本，未开启时为null
+    private volatile AdaptiveLimiter nodeLimiter;
+    //超时定时器，完成或取消后取消
+    private volatile Timeout timeout;
 
     public RPCFuture(RpcRequest request) {
-        this.sync = new Sync();
         this.request = request;
-        this.startTime = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
     }
 
-    @Override
-    public boolean isDone() {
-        return sync.isDone();
+    public long getRequestId() {
+        return request.getId();
     }
 
-    @Override
-    public Object get() throws InterruptedException, ExecutionException {
-        sync.acquire(-1);
-        if (this.response != null) {
-            return this.response.getResult();
-        } else {
-            return null;
-        }
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    void bind(PendingTable pendingTable, InFlightLimiter limiter, AdaptiveLimiter nodeLimiter) {
+        this.pendingTable = pendingTable;
+        this.limiter = limiter;
+        this.nodeLimiter = nodeLimiter;
     }
 
+    void setTimeout(Timeout timeout) {
+        this.timeout = timeout;
+    }
+
+    //请求没有写出就不会有响应；单向调用写出即完成，没有响应时间样本
     @Override
-    public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-        boolean success = sync.tryAcquireNanos(-1, unit.toNanos(timeout));
-        if (success) {
-            if (this.response != null) {
-                return this.response.getResult();
-            } else {
-                return null;
+    public void operationComplete(ChannelFuture future) throws Exception {
+        if (future.isSuccess()) {
+            if (request.isOneWay() && complete(null)) {
+                completed(-1, false);
             }
         } else {
-            throw new RuntimeException("Timeout exception. Request id: " + this.request.getRequestId()
-                    + ". Request class name: " + this.request.getClassName()
-                    + ". Request method: " + this.request.getMethodName());
+            PendingTable pendingTable = this.pendingTable;
+            if (pendingTable != null) {
+                pendingTable.remove(request.getId());
+            }
+            fail(future.cause());
         }
     }
 
-    @Override
-    public boolean isCancelled() {
-        throw new UnsupportedOperationException();
-    }
-
+    //取消后不再等待响应，释放在途槽位和超时定时器，迟到的响应直接丢弃
     @Override
     public boolean cancel(boolean mayInterruptIfRunning) {
-        throw new UnsupportedOperationException();
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled) {
+            PendingTable pendingTable = this.pendingTable;
+            if (pendingTable != null) {
+                pendingTable.remove(request.getId());
+            }
+            completed(-1, false);
+        }
+        return cancelled;
     }
 
     public void done(RpcResponse reponse) {
-        this.response = reponse;
-        sync.release(1);
-        invokeCallbacks();
+        boolean completed;
+        if (reponse.isError()) {
+            completed = completeExceptionally(new RuntimeException("返回的Response出错: " + reponse.getError()));
+        } else {
+            completed = completeResult(reponse);
+        }
+        if (completed) {
+            completed(System.nanoTime() - startNanos, false);
+        }
         // Threshold
-        long responseTime = System.currentTimeMillis() - startTime;
+        long responseTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
         if (responseTime > this.responseTimeThreshold) {
-            LOGGER.warn("Service response time is too slow. Request id = " + reponse.getRequestId() + ". Response Time = " + responseTime + "ms");
+            LOGGER.warn("Service response time is too slow. Request id = " + request.getId() + ". Response Time = " + responseTime + "ms");
         }
     }
 
-    private void invokeCallbacks() {
-        lock.lock();
-        try {
-            for (final AsyncRPCCallback callback : pendingCallbacks) {
-                runCallback(callback);
+    //按期望的返回类型绑定结果，结果与返回类型不符时以异常完成
+    private boolean completeResult(RpcResponse reponse) {
+        Object result = reponse.getResult();
+        byte serializer = reponse.getSerializer();
+        if (serializer != RpcProtocol.LEGACY) {
+            try {
+                result = SerializerFactory.get(serializer).bind(result, request.getReturnType());
+            } catch (RuntimeException e) {
+                return completeExceptionally(e);
             }
-        } finally {
-            lock.unlock();
         }
+        return complete(result);
     }
 
-    public RPCFuture addCallback(AsyncRPCCallback callback) {
-        lock.lock();
-        try {
-            if (isDone()) {
-                runCallback(callback);
-            } else {
-                this.pendingCallbacks.add(callback);
-            }
-        } finally {
-            lock.unlock();
+    //本地失败，例如超时或连接断开，不会再有响应
+    public void fail(Throwable cause) {
+        if (completeExceptionally(cause)) {
+            completed(-1, true);
         }
-        return this;
     }
 
-    private void runCallback(final AsyncRPCCallback callback) {
-        final RpcResponse res = this.response;
-        RpcClient.submit(new Runnable() {
+    //由完成本future的一方调用一次：取消超时定时器并归还在途额度，rttNanos小于0表示没有响应时间样本
+    private void completed(long rttNanos, boolean dropped) {
+        Timeout timeout = this.timeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        InFlightLimiter limiter = this.limiter;
+        if (limiter != null) {
+            limiter.release();
+        }
+        AdaptiveLimiter nodeLimiter = this.nodeLimiter;
+        if (nodeLimiter != null) {
+            nodeLimiter.release(rttNanos, dropped);
+        }
+        ConnectManage.getInstance().signalCapacity();
+    }
+
+    //回调交给RpcClient的回调线程池执行
+    public RPCFuture addCallback(AsyncRPCCallback callback) {
+        return addCallback(callback, RpcClient.executor());
+    }
+
+    //executor为null时在完成线程内直接回调
+    public RPCFuture addCallback(final AsyncRPCCallback callback, Executor executor) {
+        BiConsumer<Object, Throwable> action = new BiConsumer<Object, Throwable>() {
             @Override
-            public void run() {
-                if (!res.isError()) {
+            public void accept(Object result, Throwable cause) {
+                if (cause == null) {
                     //回调成功
-                    callback.success(res.getResult());
+                    callback.success(result);
                 } else {
                     //回调失败
-                    callback.fail(new RuntimeException("返回的Response出错", new Throwable(res.getError())));
-                }
-            }
-        });
-    }
-
-    //静态内部类
-    static class Sync extends AbstractQueuedSynchronizer {
-
-        private static final long serialVersionUID = 1L;
-
-        //future status
-        private final int done = 1;
-        private final int pending = 0;
-
-        protected boolean tryAcquire(int acquires) {
-            return getState() == done ? true : false;
-        }
-
-        protected boolean tryRelease(int releases) {
-            if (getState() == pending) {
-                if (compareAndSetState(pending, done)) {
-                    return true;
+                    callback.fail(cause instanceof Exception ? (Exception) cause : new RuntimeException(cause));
                 }
             }
-            return false;
-        }
-
-        public boolean isDone() {
-            getState();
-            return getState() == done;
+        };
+        if (executor == null) {
+            whenComplete(action);
+        } else {
+            whenCompleteAsync(action, executor);
         }
+        return this;
     }
 }
@@ -0,0 +1,20 @@
+package com.weitongming.rpc.client;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 路由键注解，标注在服务接口方法上，指定按第几个参数做一致性hash路由
+ * 同一个键总是落到同一个服务节点，适合服务端按键做本地缓存的场景；参数为null时按负载均衡策略选择
+ * 参数类型必须覆写hashCode，数组按内容、枚举按名字计算，创建代理时检查
+ *
+ * @author tim.wei
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface RoutingKey {
+    //作为路由键的参数下标，从0开始
+    int value() default 0;
+}
@@ -3,14 +3,22 @@ package com.weitongming.rpc.client;
 import com.weitongming.rpc.client.proxy.IAsyncObjectProxy;
 import com.weitongming.rpc.client.proxy.ObjectProxy;
 import com.weitongming.rpc.registry.ServiceDiscovery;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.lang.reflect.Proxy;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * RPC Client（Create RPC proxy）
@@ -21,7 +29,12 @@ public class RpcClient {
     private String serverAddress;
     private ServiceDiscovery serviceDiscovery;
     private Map<String,Object> proxys = new HashMap<>();
-    private static ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(16, 16, 600L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(65536));
+    //回调线程池满时的后备线程，不限队列长度，回调不会在完成线程（通常是IO线程）内执行，也不会丢失
+    private static final ExecutorService fallbackExecutor = Executors.newSingleThreadExecutor(
+            new DefaultThreadFactory("rpc-callback-fallback", true));
+    //回调线程池，队列满时交给后备线程，不抛RejectedExecutionException
+    private static ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(16, 16, 600L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(65536),
+            new FallbackPolicy(fallbackExecutor));
 
     public RpcClient(String serverAddress) {
         this.serverAddress = serverAddress;
@@ -61,18 +74,60 @@ public class RpcClient {
         );
     }
 
+    //指定该服务使用的序列化方式，见Serializer
+    @SuppressWarnings("unchecked")
+    public static <T> T create(Class<T> interfaceClass, byte serializer) {
+        return (T) Proxy.newProxyInstance(
+                interfaceClass.getClassLoader(),
+                new Class<?>[]{interfaceClass},
+                new ObjectProxy<T>(interfaceClass, serializer)
+        );
+    }
+
     public static <T> IAsyncObjectProxy createAsync(Class<T> interfaceClass) {
         return new ObjectProxy<T>(interfaceClass);
     }
 
+    public static <T> IAsyncObjectProxy createAsync(Class<T> interfaceClass, byte serializer) {
+        return new ObjectProxy<T>(interfaceClass, serializer);
+    }
+
     public static void submit(Runnable task){
         threadPoolExecutor.submit(task);
     }
 
+    //RPCFuture回调默认使用的线程池
+    public static Executor executor() {
+        return threadPoolExecutor;
+    }
+
     public void stop() {
         threadPoolExecutor.shutdown();
+        fallbackExecutor.shutdown();
         serviceDiscovery.stop();
         ConnectManage.getInstance().stop();
     }
-}
 
+    //线程池满时转交给后备执行器，线程池已关闭时丢弃
+    static final class FallbackPolicy implements RejectedExecutionHandler {
+        private static final Logger LOGGER = LoggerFactory.getLogger(FallbackPolicy.class);
+        private final Executor fallback;
+        //只在第一次转交时告警
+        private final AtomicBoolean warned = new AtomicBoolean();
+
+        FallbackPolicy(Executor fallback) {
+            this.fallback = fallback;
+        }
+
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                return;
+            }
+            if (warned.compareAndSet(false, true)) {
+                LOGGER.warn("回调线程池已满，回调改由后备线程执行");
+            }
+            fallback.execute(task);
+        }
+    }
+}
@@ -1,25 +1,69 @@
 package com.weitongming.rpc.client;
 
+import com.weitongming.rpc.protocol.MethodSignature;
+import com.weitongming.rpc.protocol.RawSerializer;
+import com.weitongming.rpc.protocol.RpcProtocol;
 import com.weitongming.rpc.protocol.RpcRequest;
+import com.weitongming.rpc.protocol.WriteBatcher;
 import com.weitongming.rpc.protocol.RpcResponse;
+import com.weitongming.rpc.protocol.Serializer;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by tim.wei on 2017-03-14.
  */
 public class RpcClientHandler extends SimpleChannelInboundHandler<RpcResponse> {
     private static final Logger LOGGER = LoggerFactory.getLogger(RpcClientHandler.class);
+    //所有连接共享的超时时间轮，10ms一格，每个请求的登记和取消都是O(1)
+    private static final HashedWheelTimer TIMER = new HashedWheelTimer(
+            new DefaultThreadFactory("rpc-timeout", true), 10, TimeUnit.MILLISECONDS, 512);
 
-    private ConcurrentHashMap<String, RPCFuture> pendingRPC = new ConcurrentHashMap<>();
+    private final PendingTable pendingRPC = new PendingTable();
+    //连接内自增的请求id
+    private final AtomicLong requestSequence = new AtomicLong();
+    //连接内方法字典：方法签名 -> 方法id
+    private final ConcurrentHashMap<MethodSignature, MethodEntry> methodDictionary = new ConcurrentHashMap<>();
+    private final AtomicInteger methodSequence = new AtomicInteger();
+    //对端是否支持精简头部和帧头，收到带数字id的响应后置为true，之前一直按旧格式发送完整请求
+    private volatile boolean compact;
+    //合并写，未开启时为null
+    private final int writeBatchSize;
+    private final long writeBatchDelayMicros;
+    private volatile WriteBatcher writeBatcher;
+    //响应时间的指数加权平均（权重1/8）和最近一次响应的时间，只在IO线程中写，供负载均衡读取
+    private volatile long latencyEwmaNanos;
+    private volatile long lastResponseNanos;
+    //所属服务节点的自适应并发上限，未开启时为null
+    private volatile AdaptiveLimiter nodeLimiter;
+
+    public RpcClientHandler() {
+        this(0, 0);
+    }
+
+    public RpcClientHandler(int writeBatchSize, long writeBatchDelayMicros) {
+        this.writeBatchSize = writeBatchSize;
+        this.writeBatchDelayMicros = writeBatchDelayMicros;
+    }
 
     private volatile Channel channel;
     private SocketAddress remotePeer;
@@ -32,24 +76,106 @@ public class RpcClientHandler extends SimpleChannelInboundHandler<RpcResponse> {
         return remotePeer;
     }
 
+    //在途请求数
+    public int getPendingCount() {
+        return pendingRPC.size();
+    }
+
+    public AdaptiveLimiter getNodeLimiter() {
+        return nodeLimiter;
+    }
+
+    void setNodeLimiter(AdaptiveLimiter nodeLimiter) {
+        this.nodeLimiter = nodeLimiter;
+    }
+
+    //连接可写且在途请求未达上限时才接收新请求，maxPending小于等于0表示不限制在途数
+    public boolean canAccept(int maxPending) {
+        Channel channel = this.channel;
+        return channel != null && channel.isWritable() && (maxPending <= 0 || pendingRPC.size() < maxPending);
+    }
+
+    public long getLatencyEwmaNanos() {
+        return latencyEwmaNanos;
+    }
+
+    public long getLastResponseNanos() {
+        return lastResponseNanos;
+    }
+
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
         super.channelActive(ctx);
         this.remotePeer = this.channel.remoteAddress();
     }
 
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        super.channelInactive(ctx);
+        //积压的请求写往已关闭的连接，立即失败而不是等待延迟
+        WriteBatcher batcher = writeBatcher;
+        if (batcher != null) {
+            batcher.flush();
+        }
+        //连接断开，在途请求不会再有响应，统一失败
+        for (RPCFuture rpcFuture : pendingRPC.removeAll()) {
+            rpcFuture.fail(new RuntimeException("Channel closed: " + remotePeer));
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            ConnectManage.getInstance().signalCapacity();
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
     @Override
     public void channelRegistered(ChannelHandlerContext ctx) throws Exception {
         super.channelRegistered(ctx);
         this.channel = ctx.channel();
+        if (writeBatchSize > 0) {
+            this.writeBatcher = new WriteBatcher(channel, writeBatchSize, writeBatchDelayMicros);
+        }
     }
 
     @Override
     public void channelRead0(ChannelHandlerContext ctx, RpcResponse response) throws Exception {
-        String requestId = response.getRequestId();
-        RPCFuture rpcFuture = pendingRPC.get(requestId);
-        if (rpcFuture != null) {
-            pendingRPC.remove(requestId);
+        List<RpcResponse> batch = response.getBatch();
+        if (batch != null) {
+            //批量响应按元素逐个完成，服务端可能把一个批次拆成多个响应帧陆续返回
+            compact = true;
+            for (RpcResponse element : batch) {
+                //元素沿用信封的序列化方式绑定结果
+                element.setSerializer(response.getSerializer());
+                complete(element);
+            }
+        } else {
+            complete(response);
+        }
+    }
+
+    private void complete(RpcResponse response) {
+        long requestId = response.getId();
+        if (requestId != 0) {
+            compact = true;
+        } else if (response.getRequestId() != null) {
+            //旧版本服务端只回传字符串id
+            requestId = Long.parseLong(response.getRequestId());
+        } else {
+            return;
+        }
+        RPCFuture rpcFuture = pendingRPC.remove(requestId);
+        if (rpcFuture != null && response.isOverloaded()) {
+            //过载响应不计入响应时间，按丢弃样本归还节点并发额度，使节点并发上限收缩
+            rpcFuture.fail(new OverloadedException(remotePeer, response.getError()));
+        } else if (rpcFuture != null) {
+            long now = System.nanoTime();
+            long latency = now - rpcFuture.getStartNanos();
+            long ewma = latencyEwmaNanos;
+            latencyEwmaNanos = ewma == 0 ? latency : ewma + ((latency - ewma) >> 3);
+            lastResponseNanos = now;
             rpcFuture.done(response);
         }
     }
@@ -65,10 +191,247 @@ public class RpcClientHandler extends SimpleChannelInboundHandler<RpcResponse> {
     }
 
     public RPCFuture sendRequest(RpcRequest request) {
+        return sendRequest(request, new MethodSignature(request.getClassName(), request.getMethodName(), request.getParameterTypes()));
+    }
+
+    public RPCFuture sendRequest(RpcRequest request, MethodSignature signature) {
+        return sendRequest(request, signature, ConnectManage.getInstance().getDefaultTimeoutMillis(), null, null);
+    }
+
+    /**
+     * signature由调用方预先计算好，避免每次调用重新计算hash；timeoutMillis小于等于0表示不超时
+     * limiter为调用方已占用额度的服务级限流器，nodeLimiter为调用方已占用额度的节点并发上限，请求完成时归还，都可以为null
+     */
+    public RPCFuture sendRequest(RpcRequest request, MethodSignature signature, long timeoutMillis,
+                                 InFlightLimiter limiter, AdaptiveLimiter nodeLimiter) {
+        long requestId = requestSequence.incrementAndGet();
+        request.setId(requestId);
         RPCFuture rpcFuture = new RPCFuture(request);
-        pendingRPC.put(request.getRequestId(), rpcFuture);
-        channel.writeAndFlush(request);
+        rpcFuture.bind(pendingRPC, limiter, nodeLimiter);
+        Exception invalid = validate(request);
+        if (invalid != null) {
+            rpcFuture.fail(invalid);
+            return rpcFuture;
+        }
+        if (!register(requestId, rpcFuture)) {
+            return rpcFuture;
+        }
+        if (timeoutMillis > 0) {
+            //剩余时间随请求发给服务端，超时后还在排队的请求不再执行
+            request.setBudgetMillis(timeoutMillis);
+            rpcFuture.setTimeout(TIMER.newTimeout(new RequestTimeout(requestId, timeoutMillis), timeoutMillis, TimeUnit.MILLISECONDS));
+        }
+        write(request, lookupMethod(signature)).addListener(rpcFuture);
+        return rpcFuture;
+    }
 
+    /**
+     * 单向调用：不登记在途表也不设超时定时器，服务端不返回响应，返回的future在写出成功时以null完成；
+     * timeoutMillis同样作为剩余时间发给服务端，limiter和nodeLimiter与sendRequest相同，写出完成时归还
+     */
+    public RPCFuture sendOneWay(RpcRequest request, MethodSignature signature, long timeoutMillis,
+                                InFlightLimiter limiter, AdaptiveLimiter nodeLimiter) {
+        request.setId(requestSequence.incrementAndGet());
+        request.setOneWay(true);
+        RPCFuture rpcFuture = new RPCFuture(request);
+        rpcFuture.bind(null, limiter, nodeLimiter);
+        Exception invalid = validate(request);
+        if (invalid != null) {
+            rpcFuture.fail(invalid);
+            return rpcFuture;
+        }
+        if (timeoutMillis > 0) {
+            request.setBudgetMillis(timeoutMillis);
+        }
+        write(request, lookupMethod(signature)).addListener(rpcFuture);
         return rpcFuture;
     }
+
+    //写出前检查参数，编码时才发现的错误只能让整个写出失败
+    private static Exception validate(RpcRequest request) {
+        if (request.getSerializer() == Serializer.RAW) {
+            try {
+                RawSerializer.checkRaw(request.getParameters());
+            } catch (IllegalArgumentException e) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    //按对端版本处理请求头部后写出
+    private ChannelFuture write(RpcRequest request, final MethodEntry entry) {
+        request.setMethodId(entry.id);
+        if (!compact) {
+            //对端可能是旧版本，保留字符串id和完整签名，并且按旧格式不带帧头发送
+            request.setRequestId(String.valueOf(request.getId()));
+            request.setSerializer(RpcProtocol.LEGACY);
+        } else if (entry.defined) {
+            //对端已登记该方法，只发送方法id
+            request.setClassName(null);
+            request.setMethodName(null);
+            request.setParameterTypes(null);
+        }
+        WriteBatcher batcher = writeBatcher;
+        ChannelFuture writeFuture = batcher != null ? batcher.write(request) : channel.writeAndFlush(request);
+        if (!entry.defined) {
+            //携带完整签名的请求写出之后，后续请求才能只带方法id，保证服务端先收到登记
+            writeFuture.addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (future.isSuccess()) {
+                        entry.defined = true;
+                    }
+                }
+            });
+        }
+        return writeFuture;
+    }
+
+    public List<RPCFuture> sendBatch(List<RpcRequest> requests, MethodSignature signature, long timeoutMillis, boolean parallel) {
+        return sendBatch(requests, signature, timeoutMillis, parallel, null, null);
+    }
+
+    /**
+     * 批量发送同一方法的多次调用：对端支持精简头部时打包成一个请求帧，只写出和flush一次，
+     * 每个元素仍各自分配请求id、登记在途表和超时，返回的future与requests一一对应；
+     * 对端可能是旧版本时退化为逐个发送。limiter和nodeLimiter为调用方已为每个元素各占用一份额度的限流器，
+     * 每个元素完成时各自归还，都可以为null
+     */
+    public List<RPCFuture> sendBatch(List<RpcRequest> requests, MethodSignature signature, long timeoutMillis, boolean parallel,
+                                     InFlightLimiter limiter, AdaptiveLimiter nodeLimiter) {
+        List<RPCFuture> futures = new ArrayList<>(requests.size());
+        if (!compact || requests.isEmpty()) {
+            for (RpcRequest request : requests) {
+                futures.add(sendRequest(request, signature, timeoutMillis, limiter, nodeLimiter));
+            }
+            return futures;
+        }
+        for (RpcRequest request : requests) {
+            Exception invalid = validate(request);
+            if (invalid != null) {
+                //一个元素不合法时整批不发送
+                for (RpcRequest element : requests) {
+                    RPCFuture rpcFuture = new RPCFuture(element);
+                    rpcFuture.bind(null, limiter, nodeLimiter);
+                    rpcFuture.fail(invalid);
+                    futures.add(rpcFuture);
+                }
+                return futures;
+            }
+        }
+        final MethodEntry entry = lookupMethod(signature);
+        boolean defined = entry.defined;
+        boolean closed = false;
+        for (int i = 0; i < requests.size(); i++) {
+            RpcRequest request = requests.get(i);
+            long requestId = requestSequence.incrementAndGet();
+            request.setId(requestId);
+            request.setMethodId(entry.id);
+            //服务端按顺序处理元素，方法未登记时只需第一个元素携带完整签名
+            if (defined || i > 0) {
+                request.setClassName(null);
+                request.setMethodName(null);
+                request.setParameterTypes(null);
+            }
+            RPCFuture rpcFuture = new RPCFuture(request);
+            rpcFuture.bind(pendingRPC, limiter, nodeLimiter);
+            futures.add(rpcFuture);
+            if (!register(requestId, rpcFuture)) {
+                //连接已断开，其余元素同样失败，整批不发送
+                closed = true;
+                continue;
+            }
+            if (timeoutMillis > 0) {
+                request.setBudgetMillis(timeoutMillis);
+                rpcFuture.setTimeout(TIMER.newTimeout(new RequestTimeout(requestId, timeoutMillis), timeoutMillis, TimeUnit.MILLISECONDS));
+            }
+        }
+        if (closed) {
+            return futures;
+        }
+        //信封沿用第一个元素的序列化方式、压缩阈值、优先级和调用方
+        RpcRequest first = requests.get(0);
+        RpcRequest envelope = new RpcRequest();
+        envelope.setBatch(requests);
+        envelope.setParallel(parallel);
+        envelope.setSerializer(first.getSerializer());
+        envelope.setCompressThreshold(first.getCompressThreshold());
+        envelope.setPriority(first.getPriority());
+        envelope.setCaller(first.getCaller());
+        WriteBatcher batcher = writeBatcher;
+        ChannelFuture writeFuture = batcher != null ? batcher.write(envelope) : channel.writeAndFlush(envelope);
+        for (RPCFuture rpcFuture : futures) {
+            writeFuture.addListener(rpcFuture);
+        }
+        if (!defined) {
+            writeFuture.addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (future.isSuccess()) {
+                        entry.defined = true;
+                    }
+                }
+            });
+        }
+        return futures;
+    }
+
+    /**
+     * 登记到在途表；登记晚于channelInactive的统一清理时请求不会再有响应，
+     * 所以登记后再检查连接，已断开时由本线程认领并失败，与清理竞争同一个槽位，只有一方能取到
+     */
+    private boolean register(long requestId, RPCFuture rpcFuture) {
+        pendingRPC.put(requestId, rpcFuture);
+        if (channel.isActive()) {
+            return true;
+        }
+        if (pendingRPC.remove(requestId) != null) {
+            rpcFuture.fail(new RuntimeException("Channel closed: " + remotePeer));
+        }
+        return false;
+    }
+
+    private MethodEntry lookupMethod(MethodSignature signature) {
+        MethodEntry entry = methodDictionary.get(signature);
+        if (entry == null) {
+            MethodEntry newEntry = new MethodEntry(methodSequence.incrementAndGet());
+            entry = methodDictionary.putIfAbsent(signature, newEntry);
+            if (entry == null) {
+                entry = newEntry;
+            }
+        }
+        return entry;
+    }
+
+    //请求超时：从在途表中摘除并失败，与响应到达竞争同一个槽位，只有一方能取到
+    private final class RequestTimeout implements TimerTask {
+        private final long requestId;
+        private final long timeoutMillis;
+
+        RequestTimeout(long requestId, long timeoutMillis) {
+            this.requestId = requestId;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public void run(Timeout timeout) throws Exception {
+            RPCFuture rpcFuture = pendingRPC.remove(requestId);
+            if (rpcFuture != null) {
+                rpcFuture.fail(new TimeoutException("Request timeout after " + timeoutMillis + "ms. Request id: " + requestId
+                        + ". Remote peer: " + remotePeer));
+            }
+        }
+    }
+
+    //方法字典条目
+    private static final class MethodEntry {
+        final int id;
+        //是否已有携带完整签名的请求写出
+        volatile boolean defined;
+
+        MethodEntry(int id) {
+            this.id = id;
+        }
+    }
 }
@@ -1,5 +1,6 @@
 package com.weitongming.rpc.client;
 
+import com.weitongming.rpc.protocol.ChunkedFrameWriter;
 import com.weitongming.rpc.protocol.RpcDecoder;
 import com.weitongming.rpc.protocol.RpcEncoder;
 import com.weitongming.rpc.protocol.RpcRequest;
@@ -7,22 +8,34 @@ import com.weitongming.rpc.protocol.RpcResponse;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 
 /**
  * Created by tim.wei on 2017-03-16.
  */
 public class RpcClientInitializer extends ChannelInitializer<SocketChannel> {
+    //合并写配置，见WriteBatcher
+    private final int writeBatchSize;
+    private final long writeBatchDelayMicros;
+
+    public RpcClientInitializer() {
+        this(0, 0);
+    }
+
+    public RpcClientInitializer(int writeBatchSize, long writeBatchDelayMicros) {
+        this.writeBatchSize = writeBatchSize;
+        this.writeBatchDelayMicros = writeBatchDelayMicros;
+    }
+
     @Override
     protected void initChannel(SocketChannel socketChannel) throws Exception {
         ChannelPipeline cp = socketChannel.pipeline();
+        //超过分片大小的帧分片写出
+        cp.addLast(new ChunkedFrameWriter());
         //编码
         cp.addLast(new RpcEncoder(RpcRequest.class));
-        //解码
-        cp.addLast(new LengthFieldBasedFrameDecoder(65536, 0, 4, 0, 0));
-        //解码
+        //拆帧并解码
         cp.addLast(new RpcDecoder(RpcResponse.class));
         //客户端 ---最底层的发送
-        cp.addLast(new RpcClientHandler());
+        cp.addLast(new RpcClientHandler(writeBatchSize, writeBatchDelayMicros));
     }
 }
@@ -0,0 +1,19 @@
+package com.weitongming.rpc.client;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 调用超时注解，标注在服务接口或接口方法上，超时后请求失败并释放在途槽位
+ * 方法上的注解优先于接口上的注解，未标注的使用ConnectManage上的默认超时
+ *
+ * @author tim.wei
+ */
+@Target({ElementType.TYPE, ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface RpcTimeout {
+    //超时毫秒数，小于等于0表示不超时
+    long value();
+}
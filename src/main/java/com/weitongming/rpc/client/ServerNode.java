@@ -0,0 +1,79 @@
+package com.weitongming.rpc.client;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 一个服务节点及其连接池，每个槽位一条连接，各自断线重连
+ * 槽位为null表示该连接正在建立或重连
+ *
+ * @author tim.wei
+ */
+public class ServerNode {
+    private final InetSocketAddress address;
+    private final AtomicReferenceArray<RpcClientHandler> handlers;
+    //第一条连接使用的事件循环下标，后续槽位依次后移，保证同一节点的连接落在不同的事件循环上
+    private final int eventLoopOffset;
+    //节点的自适应并发上限，各条连接共享，未开启时为null
+    private final AdaptiveLimiter limiter;
+    //节点已从服务列表中移除，不再重连
+    private volatile boolean removed;
+
+    public ServerNode(InetSocketAddress address, int connections, int eventLoopOffset, AdaptiveLimiter limiter) {
+        this.address = address;
+        this.handlers = new AtomicReferenceArray<>(connections);
+        this.eventLoopOffset = eventLoopOffset;
+        this.limiter = limiter;
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    public AdaptiveLimiter getLimiter() {
+        return limiter;
+    }
+
+    public int getConnections() {
+        return handlers.length();
+    }
+
+    int eventLoopIndex(int slot) {
+        return eventLoopOffset + slot;
+    }
+
+    RpcClientHandler get(int slot) {
+        return handlers.get(slot);
+    }
+
+    void set(int slot, RpcClientHandler handler) {
+        handlers.set(slot, handler);
+    }
+
+    //只清除仍是该handler的槽位，避免误清重连后的新连接
+    void clear(int slot, RpcClientHandler handler) {
+        handlers.compareAndSet(slot, handler, null);
+    }
+
+    boolean isRemoved() {
+        return removed;
+    }
+
+    void remove() {
+        this.removed = true;
+    }
+
+    //从随机槽位开始找一条可用连接，没有时返回null
+    public RpcClientHandler anyHandler() {
+        int length = handlers.length();
+        int start = length == 1 ? 0 : ThreadLocalRandom.current().nextInt(length);
+        for (int i = 0; i < length; i++) {
+            RpcClientHandler handler = handlers.get((start + i) % length);
+            if (handler != null) {
+                return handler;
+            }
+        }
+        return null;
+    }
+}
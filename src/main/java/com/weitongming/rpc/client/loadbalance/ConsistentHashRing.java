@@ -0,0 +1,198 @@
+package com.weitongming.rpc.client.loadbalance;
+
+import com.weitongming.rpc.client.RpcClientHandler;
+import com.weitongming.rpc.client.ServerNode;
+
+import java.lang.reflect.Modifier;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * 一致性hash环，每个服务节点放置若干虚拟节点，节点增减时只有约1/N的键换节点
+ * 虚拟节点的位置按ketama方式由MD5计算，只在节点变化时增量调整；调用时对键的稳定hash做一次混淆后在环上顺时针查找
+ * 键的hash在不同进程之间必须一致：数组按内容、枚举按名字计算，其他类型必须覆写hashCode，见hasStableHash
+ *
+ * @author tim.wei
+ */
+public class ConsistentHashRing {
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+    //类型 -> 是否覆写了hashCode
+    private static final ClassValue<Boolean> STABLE_HASH = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            try {
+                return type.getMethod("hashCode").getDeclaringClass() != Object.class;
+            } catch (NoSuchMethodException e) {
+                return false;
+            }
+        }
+    };
+
+    private final int virtualNodes;
+    //虚拟节点位置 -> 服务节点，查找时不加锁
+    private final ConcurrentSkipListMap<Long, InetSocketAddress> ring = new ConcurrentSkipListMap<>();
+    //服务节点 -> 它的虚拟节点位置，只在update中读写
+    private final Map<InetSocketAddress, long[]> nodes = new HashMap<>();
+
+    public ConsistentHashRing() {
+        this(DEFAULT_VIRTUAL_NODES);
+    }
+
+    public ConsistentHashRing(int virtualNodes) {
+        this.virtualNodes = virtualNodes;
+    }
+
+    //按最新的服务节点列表增量调整，只增删变化的节点
+    public synchronized void update(Set<InetSocketAddress> serverNodes) {
+        Iterator<Map.Entry<InetSocketAddress, long[]>> iterator = nodes.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<InetSocketAddress, long[]> entry = iterator.next();
+            if (!serverNodes.contains(entry.getKey())) {
+                for (long position : entry.getValue()) {
+                    ring.remove(position, entry.getKey());
+                }
+                iterator.remove();
+            }
+        }
+        for (InetSocketAddress node : serverNodes) {
+            if (!nodes.containsKey(node)) {
+                long[] positions = positions(node);
+                for (long position : positions) {
+                    //位置冲突时先加入的节点保留
+                    ring.putIfAbsent(position, node);
+                }
+                nodes.put(node, positions);
+            }
+        }
+    }
+
+    /**
+     * 顺时针查找键对应的服务节点，节点暂时没有可用连接（例如正在重连）时顺延到下一个节点
+     * 环为空或没有任何可用连接时返回null
+     */
+    public RpcClientHandler select(Object key, Map<InetSocketAddress, ServerNode> serverNodes) {
+        Map.Entry<Long, InetSocketAddress> entry = ring.ceilingEntry(hash(key));
+        for (int i = ring.size(); i > 0; i--) {
+            if (entry == null) {
+                entry = ring.firstEntry();
+                if (entry == null) {
+                    return null;
+                }
+            }
+            ServerNode serverNode = serverNodes.get(entry.getValue());
+            RpcClientHandler handler = serverNode == null ? null : serverNode.anyHandler();
+            if (handler != null) {
+                return handler;
+            }
+            entry = ring.higherEntry(entry.getKey());
+        }
+        return null;
+    }
+
+    //键当前归属的服务节点，不考虑连接是否可用，环为空时返回null
+    InetSocketAddress locate(Object key) {
+        Map.Entry<Long, InetSocketAddress> entry = ring.ceilingEntry(hash(key));
+        if (entry == null) {
+            entry = ring.firstEntry();
+        }
+        return entry == null ? null : entry.getValue();
+    }
+
+    /**
+     * 该类型的值能否作为路由键：基本类型、枚举、元素类型可用的数组，以及覆写了hashCode的类
+     * 使用Object默认hashCode的类按对象地址计算，每个进程、每个实例都不同，同一个键会落到不同节点
+     * 接口、抽象类和Object无法在声明时判断，调用时按实际类型检查
+     */
+    public static boolean hasStableHash(Class<?> type) {
+        if (type.isPrimitive() || type.isEnum()) {
+            return true;
+        }
+        if (type.isArray()) {
+            return hasStableHash(type.getComponentType());
+        }
+        if (type == Object.class || type.isInterface() || Modifier.isAbstract(type.getModifiers())) {
+            return true;
+        }
+        return STABLE_HASH.get(type);
+    }
+
+    private long[] positions(InetSocketAddress node) {
+        long[] positions = new long[virtualNodes];
+        String name = node.getHostString() + ":" + node.getPort();
+        MessageDigest md5 = md5();
+        //每个MD5摘要切成4个位置
+        for (int i = 0; i < virtualNodes; i += 4) {
+            byte[] digest = md5.digest((name + "#" + i / 4).getBytes(StandardCharsets.UTF_8));
+            for (int j = 0; j < 4 && i + j < virtualNodes; j++) {
+                positions[i + j] = fmix64(((long) (digest[j * 4 + 3] & 0xFF) << 24)
+                        | ((long) (digest[j * 4 + 2] & 0xFF) << 16)
+                        | ((long) (digest[j * 4 + 1] & 0xFF) << 8)
+                        | (digest[j * 4] & 0xFF));
+            }
+        }
+        return positions;
+    }
+
+    private static long hash(Object key) {
+        return fmix64(stableHashCode(key));
+    }
+
+    //按内容计算，与进程和实例无关
+    private static int stableHashCode(Object key) {
+        if (key instanceof Enum) {
+            //枚举的hashCode是对象地址
+            return ((Enum<?>) key).name().hashCode();
+        } else if (key instanceof byte[]) {
+            return Arrays.hashCode((byte[]) key);
+        } else if (key instanceof int[]) {
+            return Arrays.hashCode((int[]) key);
+        } else if (key instanceof long[]) {
+            return Arrays.hashCode((long[]) key);
+        } else if (key instanceof char[]) {
+            return Arrays.hashCode((char[]) key);
+        } else if (key instanceof short[]) {
+            return Arrays.hashCode((short[]) key);
+        } else if (key instanceof boolean[]) {
+            return Arrays.hashCode((boolean[]) key);
+        } else if (key instanceof float[]) {
+            return Arrays.hashCode((float[]) key);
+        } else if (key instanceof double[]) {
+            return Arrays.hashCode((double[]) key);
+        } else if (key instanceof Object[]) {
+            int h = 1;
+            for (Object element : (Object[]) key) {
+                h = 31 * h + (element == null ? 0 : stableHashCode(element));
+            }
+            return h;
+        } else if (!STABLE_HASH.get(key.getClass())) {
+            throw new IllegalArgumentException("Routing key type does not override hashCode: " + key.getClass().getName());
+        }
+        return key.hashCode();
+    }
+
+    //murmur3的64位终结混淆，让相近的hashCode在环上分散开
+    private static long fmix64(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
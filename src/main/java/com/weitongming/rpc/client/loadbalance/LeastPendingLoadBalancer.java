@@ -0,0 +1,32 @@
+package com.weitongming.rpc.client.loadbalance;
+
+import com.weitongming.rpc.client.RpcClientHandler;
+import com.weitongming.rpc.protocol.RpcRequest;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 最少在途请求：选择在途表中请求最少的处理机，慢节点积压的请求多，自然分到的少
+ * 从随机位置开始扫描，在途数相同时不会总是落在第一个节点上
+ *
+ * @author tim.wei
+ */
+public class LeastPendingLoadBalancer implements LoadBalancer {
+
+    @Override
+    public RpcClientHandler select(RpcClientHandler[] handlers, RpcRequest request) {
+        int length = handlers.length;
+        int start = length == 1 ? 0 : ThreadLocalRandom.current().nextInt(length);
+        RpcClientHandler best = handlers[start];
+        int bestPending = best.getPendingCount();
+        for (int i = 1; i < length && bestPending > 0; i++) {
+            RpcClientHandler handler = handlers[(start + i) % length];
+            int pending = handler.getPendingCount();
+            if (pending < bestPending) {
+                best = handler;
+                bestPending = pending;
+            }
+        }
+        return best;
+    }
+}
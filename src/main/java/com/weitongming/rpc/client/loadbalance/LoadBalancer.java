@@ -0,0 +1,16 @@
+package com.weitongming.rpc.client.loadbalance;
+
+import com.weitongming.rpc.client.RpcClientHandler;
+import com.weitongming.rpc.protocol.RpcRequest;
+
+/**
+ * 负载均衡策略，从已连接的处理机中为一次调用选出一个
+ * handlers是ConnectManage维护的不可变快照，至少有一个元素，实现不得修改；每次调用都会执行，不要分配对象
+ * 可以按服务接口通过ConnectManage#setLoadBalancer配置
+ *
+ * @author tim.wei
+ */
+public interface LoadBalancer {
+
+    RpcClientHandler select(RpcClientHandler[] handlers, RpcRequest request);
+}
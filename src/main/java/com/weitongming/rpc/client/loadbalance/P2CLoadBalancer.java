@@ -0,0 +1,46 @@
+package com.weitongming.rpc.client.loadbalance;
+
+import com.weitongming.rpc.client.RpcClientHandler;
+import com.weitongming.rpc.protocol.RpcRequest;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 两次随机选择（power of two choices）：随机取两个处理机，选择代价较小的一个
+ * 代价 = 响应时间的指数加权平均 * (在途请求数 + 1)，同时兼顾节点的快慢和当前积压
+ * 还没有响应时间样本、或者空闲超过1秒的节点代价为0，会被优先尝试，避免慢过一次的节点再也分不到请求
+ *
+ * @author tim.wei
+ */
+public class P2CLoadBalancer implements LoadBalancer {
+    //空闲多久后不再参考旧的响应时间
+    private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    @Override
+    public RpcClientHandler select(RpcClientHandler[] handlers, RpcRequest request) {
+        int length = handlers.length;
+        if (length == 1) {
+            return handlers[0];
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(length);
+        //第二个在其余节点中选，保证两者不同
+        int second = random.nextInt(length - 1);
+        if (second >= first) {
+            second++;
+        }
+        RpcClientHandler a = handlers[first];
+        RpcClientHandler b = handlers[second];
+        long now = System.nanoTime();
+        return cost(a, now) <= cost(b, now) ? a : b;
+    }
+
+    private static double cost(RpcClientHandler handler, long now) {
+        int pending = handler.getPendingCount();
+        if (pending == 0 && now - handler.getLastResponseNanos() > IDLE_NANOS) {
+            return 0;
+        }
+        return (double) handler.getLatencyEwmaNanos() * (pending + 1);
+    }
+}
@@ -0,0 +1,19 @@
+package com.weitongming.rpc.client.loadbalance;
+
+import com.weitongming.rpc.client.RpcClientHandler;
+import com.weitongming.rpc.protocol.RpcRequest;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 随机
+ *
+ * @author tim.wei
+ */
+public class RandomLoadBalancer implements LoadBalancer {
+
+    @Override
+    public RpcClientHandler select(RpcClientHandler[] handlers, RpcRequest request) {
+        return handlers[ThreadLocalRandom.current().nextInt(handlers.length)];
+    }
+}
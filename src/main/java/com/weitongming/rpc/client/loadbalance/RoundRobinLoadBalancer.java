@@ -0,0 +1,22 @@
+package com.weitongming.rpc.client.loadbalance;
+
+import com.weitongming.rpc.client.RpcClientHandler;
+import com.weitongming.rpc.protocol.RpcRequest;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 轮询
+ *
+ * @author tim.wei
+ */
+public class RoundRobinLoadBalancer implements LoadBalancer {
+    private final AtomicInteger roundRobin = new AtomicInteger(0);
+
+    @Override
+    public RpcClientHandler select(RpcClientHandler[] handlers, RpcRequest request) {
+        //计数器溢出为负数后仍然均匀
+        int index = (roundRobin.getAndIncrement() & Integer.MAX_VALUE) % handlers.length;
+        return handlers[index];
+    }
+}
@@ -2,10 +2,21 @@ package com.weitongming.rpc.client.proxy;
 
 import com.weitongming.rpc.client.RPCFuture;
 
+import java.util.List;
+
 /**
  * 异步调用接口
  * Created by tim.wei on 2017/3/16.
  */
 public interface IAsyncObjectProxy {
     public RPCFuture call(String funcName, Object... args);
+
+    //指定本次调用的序列化方式，见Serializer
+    public RPCFuture call(byte serializer, String funcName, Object... args);
+
+    //批量调用同一方法，argsList中每一项是一次调用的参数，打包成一个请求帧发给同一个节点，返回的future与argsList一一对应
+    public List<RPCFuture> callBatch(String funcName, List<Object[]> argsList);
+
+    //parallel为true时服务端在线程池中并行执行各次调用，先完成的结果先返回
+    public List<RPCFuture> callBatch(String funcName, List<Object[]> argsList, boolean parallel);
 }
\ No newline at end of file
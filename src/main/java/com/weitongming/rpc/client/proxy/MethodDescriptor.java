@@ -0,0 +1,139 @@
+package com.weitongming.rpc.client.proxy;
+
+import com.weitongming.rpc.client.Idempotent;
+import com.weitongming.rpc.client.Interactive;
+import com.weitongming.rpc.client.LatencyWindow;
+import com.weitongming.rpc.client.OneWay;
+import com.weitongming.rpc.client.RoutingKey;
+import com.weitongming.rpc.client.RpcTimeout;
+import com.weitongming.rpc.client.loadbalance.ConsistentHashRing;
+import com.weitongming.rpc.protocol.CompressionUtil;
+import com.weitongming.rpc.protocol.MethodSignature;
+import com.weitongming.rpc.protocol.RpcRequest;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 接口方法的调用元数据，创建代理时一次性解析，每次调用直接复用
+ * @author tim.wei
+ */
+public final class MethodDescriptor {
+    private final String className;
+    private final String methodName;
+    //只读，不得修改
+    private final Class<?>[] parameterTypes;
+    //连接内方法字典的key，hash已预先计算
+    private final MethodSignature signature;
+    private final int compressThreshold;
+    //注解配置的超时，未配置时为null，使用默认超时
+    private final Long timeoutMillis;
+    //作为路由键的参数下标，-1表示不按键路由
+    private final int routingKeyIndex;
+    //幂等方法配置的对冲延迟，小于等于0时按最近调用耗时的p95
+    private final long hedgeDelayNanos;
+    //幂等方法最近调用的耗时，非幂等方法为null
+    private final LatencyWindow latencies;
+    //请求优先级，见RpcRequest.PRIORITY_*
+    private final byte priority;
+    private final boolean oneWay;
+    //声明的返回类型（含泛型参数），用于绑定响应结果
+    private final Type returnType;
+
+    public MethodDescriptor(Class<?> interfaceClass, Method method) {
+        //使用服务接口名而不是声明方法的父接口名，与服务端登记的接口名一致
+        this.className = interfaceClass.getName();
+        this.methodName = method.getName();
+        this.parameterTypes = method.getParameterTypes();
+        this.signature = new MethodSignature(className, methodName, parameterTypes);
+        this.compressThreshold = CompressionUtil.threshold(interfaceClass, method);
+        this.timeoutMillis = timeoutMillis(interfaceClass, method);
+        RoutingKey routingKey = method.getAnnotation(RoutingKey.class);
+        if (routingKey != null && (routingKey.value() < 0 || routingKey.value() >= parameterTypes.length)) {
+            throw new IllegalArgumentException("@RoutingKey index out of range: " + method);
+        }
+        if (routingKey != null && !ConsistentHashRing.hasStableHash(parameterTypes[routingKey.value()])) {
+            throw new IllegalArgumentException("@RoutingKey parameter type does not override hashCode: " + method);
+        }
+        this.routingKeyIndex = routingKey == null ? -1 : routingKey.value();
+        Idempotent idempotent = method.getAnnotation(Idempotent.class);
+        this.hedgeDelayNanos = idempotent == null ? 0 : TimeUnit.MILLISECONDS.toNanos(idempotent.hedgeDelayMillis());
+        this.latencies = idempotent == null ? null : new LatencyWindow(0.95);
+        boolean interactive = method.isAnnotationPresent(Interactive.class) || interfaceClass.isAnnotationPresent(Interactive.class);
+        this.priority = interactive ? RpcRequest.PRIORITY_INTERACTIVE : RpcRequest.PRIORITY_NORMAL;
+        this.returnType = method.getGenericReturnType();
+        this.oneWay = method.isAnnotationPresent(OneWay.class);
+        if (oneWay && method.getReturnType() != void.class) {
+            throw new IllegalArgumentException("@OneWay method must return void: " + method);
+        }
+    }
+
+    //方法上的注解优先于接口上的注解
+    static Long timeoutMillis(Class<?> interfaceClass, Method method) {
+        RpcTimeout timeout = method == null ? null : method.getAnnotation(RpcTimeout.class);
+        if (timeout == null) {
+            timeout = interfaceClass.getAnnotation(RpcTimeout.class);
+        }
+        return timeout == null ? null : timeout.value();
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public String getMethodName() {
+        return methodName;
+    }
+
+    public Class<?>[] getParameterTypes() {
+        return parameterTypes;
+    }
+
+    public MethodSignature getSignature() {
+        return signature;
+    }
+
+    public int getCompressThreshold() {
+        return compressThreshold;
+    }
+
+    public Long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public int getRoutingKeyIndex() {
+        return routingKeyIndex;
+    }
+
+    //取出本次调用的路由键，不按键路由时返回null
+    public Object routingKey(Object[] args) {
+        return routingKeyIndex < 0 ? null : args[routingKeyIndex];
+    }
+
+    public byte getPriority() {
+        return priority;
+    }
+
+    public Type getReturnType() {
+        return returnType;
+    }
+
+    public boolean isOneWay() {
+        return oneWay;
+    }
+
+    public boolean isIdempotent() {
+        return latencies != null;
+    }
+
+    //发出对冲请求前等待的纳秒数，按p95时样本不足返回0，此时不对冲
+    public long hedgeDelayNanos() {
+        return hedgeDelayNanos > 0 ? hedgeDelayNanos : latencies.getPercentileNanos();
+    }
+
+    //记录幂等方法一次成功调用的耗时
+    public void recordLatency(long nanos) {
+        latencies.record(nanos);
+    }
+}
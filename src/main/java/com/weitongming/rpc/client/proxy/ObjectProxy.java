@@ -1,94 +1,439 @@
 package com.weitongming.rpc.client.proxy;
 
 import com.weitongming.rpc.client.ConnectManage;
+import com.weitongming.rpc.client.InFlightLimiter;
+import com.weitongming.rpc.client.OverloadedException;
 import com.weitongming.rpc.client.RPCFuture;
 import com.weitongming.rpc.client.RpcClientHandler;
+import com.weitongming.rpc.protocol.CompressionUtil;
+import com.weitongming.rpc.protocol.Deadline;
+import com.weitongming.rpc.protocol.MethodSignature;
 import com.weitongming.rpc.protocol.RpcRequest;
+import com.weitongming.rpc.protocol.Serializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
-import java.util.UUID;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 /**
  * 泛型代理对象 proxyObject 用于发起netty连接
+ * 接口方法的元数据在构造时预先解析为MethodDescriptor，调用时只需打包参数并发送
  * Created by tim.wei on 2017-03-16.
  */
 public class ObjectProxy<T> implements InvocationHandler, IAsyncObjectProxy {
     private static final Logger LOGGER = LoggerFactory.getLogger(ObjectProxy.class);
     //class集合，用于获取代理类对象
     private Class<T> clazz;
+    //序列化方式
+    private byte serializer;
+    //接口上配置的压缩阈值
+    private int compressThreshold;
+    //接口上配置的超时，未配置时为null
+    private Long timeoutMillis;
+    //方法 -> 调用元数据，构造后只读
+    private final Map<Method, MethodDescriptor> descriptors = new HashMap<>();
+    //方法名 -> 调用元数据，只收录没有重载的方法，供异步调用按方法名查找
+    private final Map<String, MethodDescriptor> descriptorsByName = new HashMap<>();
 
     //构造函数传入，在spring之中传入
     public ObjectProxy(Class<T> clazz) {
+        this(clazz, Serializer.PROTOSTUFF);
+    }
+
+    public ObjectProxy(Class<T> clazz, byte serializer) {
         this.clazz = clazz;
+        this.serializer = serializer;
+        this.compressThreshold = CompressionUtil.threshold(clazz, null);
+        this.timeoutMillis = MethodDescriptor.timeoutMillis(clazz, null);
+        Set<String> overloaded = new HashSet<>();
+        for (Method method : clazz.getMethods()) {
+            MethodDescriptor descriptor = new MethodDescriptor(clazz, method);
+            descriptors.put(method, descriptor);
+            if (descriptorsByName.put(method.getName(), descriptor) != null) {
+                overloaded.add(method.getName());
+            }
+        }
+        descriptorsByName.keySet().removeAll(overloaded);
     }
 
     //复写invocationHandler的invoke方法
     @Override
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-        //获取方法所属类
-        if (Object.class == method.getDeclaringClass()) {
-            //获取方法名
-            String name = method.getName();
-            //基础方法
-            if ("equals".equals(name)) {
-                return proxy == args[0];
-            } else if ("hashCode".equals(name)) {
-                return System.identityHashCode(proxy);
-            } else if ("toString".equals(name)) {
-                return proxy.getClass().getName() + "@" +
-                        Integer.toHexString(System.identityHashCode(proxy)) +
-                        ", with InvocationHandler " + this;
-            } else {
-                throw new IllegalStateException(String.valueOf(method));
+        MethodDescriptor descriptor = descriptors.get(method);
+        if (descriptor == null) {
+            return invokeObjectMethod(proxy, method, args);
+        }
+        //RpcRequest 请求id由发送的连接分配
+        RpcRequest request = newRequest(descriptor, args);
+        long timeout = timeoutMillis(descriptor.getTimeoutMillis());
+        long start = System.nanoTime();
+        if (descriptor.isOneWay()) {
+            RPCFuture written = sendOneWay(descriptor, request, args, timeout, true);
+            awaitWritten(written, remainingMillis(timeout, start));
+            return null;
+        }
+        try {
+            if (descriptor.isIdempotent()) {
+                return invokeHedged(descriptor, request, args, timeout);
             }
+            //发送请求，达到在途上限时在超时时间内等待
+            RPCFuture rpcFuture = send(request, descriptor.getSignature(), descriptor.routingKey(args), timeout, true);
+            //返回远程调用结果
+            return await(rpcFuture);
+        } catch (OverloadedException e) {
+            //服务端过载时请求没有执行，任何方法都可以换一个节点重试一次
+            RPCFuture retry = sendElsewhere(descriptor, args, e.getRemotePeer(), timeout, start, false);
+            if (retry == null) {
+                throw e;
+            }
+            return await(retry);
         }
-        //RpcRequest
-        RpcRequest request = new RpcRequest();
-        //设置id
-        request.setRequestId(UUID.randomUUID().toString());
-        //设置类名
-        request.setClassName(method.getDeclaringClass().getName());
-        //设置方法名
-        request.setMethodName(method.getName());
-        //设置参数类型
-        request.setParameterTypes(method.getParameterTypes());
-        //设置参数列表
-        request.setParameters(args);
-        // Debug
-        LOGGER.debug(method.getDeclaringClass().getName());
-        LOGGER.debug(method.getName());
-        for (int i = 0; i < method.getParameterTypes().length; ++i) {
-            LOGGER.debug(method.getParameterTypes()[i].getName());
-        }
-        //修复代理参数为空时出现的空指针异常 fixbug
-        if (args != null)
-        {
-            for (int i = 0; i < args.length; ++i) {
-                LOGGER.debug(args[i].toString());
+    }
+
+    /**
+     * 幂等方法：主请求在对冲延迟内没有返回时，向另一个节点发送一份相同的请求，先成功的一份作为结果，
+     * 两份都失败时抛出后失败的一份的异常；返回后取消还未完成的另一份
+     */
+    private Object invokeHedged(MethodDescriptor descriptor, RpcRequest request, Object[] args, long timeoutMillis) throws Throwable {
+        long start = System.nanoTime();
+        if (Deadline.isExpired()) {
+            TimeoutException timeout = deadlineExceeded(request);
+            throw new RuntimeException(timeout.getMessage(), timeout);
+        }
+        InFlightLimiter limiter = ConnectManage.getInstance().getInFlightLimiter(request.getClassName());
+        RpcClientHandler handler = acquire(request, descriptor.routingKey(args), limiter, timeoutMillis, true);
+        if (handler == null) {
+            throw rejected(request);
+        }
+        RPCFuture primary = send(handler, request, descriptor.getSignature(), limiter, remainingMillis(timeoutMillis, start));
+        RPCFuture hedge = null;
+        try {
+            long delayNanos = descriptor.hedgeDelayNanos();
+            if (delayNanos > 0 && (timeoutMillis <= 0 || delayNanos < TimeUnit.MILLISECONDS.toNanos(timeoutMillis))) {
+                try {
+                    primary.get(delayNanos, TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    hedge = sendElsewhere(descriptor, args, handler.getRemotePeer(), timeoutMillis, start, true);
+                } catch (ExecutionException e) {
+                    //主请求已经失败，由下面的await抛出
+                }
+            }
+            Object result = await(hedge == null ? primary : firstSuccess(primary, hedge));
+            descriptor.recordLatency(System.nanoTime() - start);
+            return result;
+        } finally {
+            if (hedge != null) {
+                primary.cancel(false);
+                hedge.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * 单向调用：与普通调用一样选择能接收请求的连接并占用在途额度，写出完成即归还，不参与对冲和重试；
+     * 返回的future在写出成功时以null完成，写出失败、截止时间已过或没有额度时失败
+     */
+    private RPCFuture sendOneWay(MethodDescriptor descriptor, RpcRequest request, Object[] args, long timeoutMillis, boolean wait) {
+        if (Deadline.isExpired()) {
+            return failed(request, deadlineExceeded(request));
+        }
+        long start = System.nanoTime();
+        InFlightLimiter limiter = ConnectManage.getInstance().getInFlightLimiter(request.getClassName());
+        RpcClientHandler handler = acquire(request, descriptor.routingKey(args), limiter, timeoutMillis, wait);
+        if (handler == null) {
+            return failed(request, rejected(request));
+        }
+        return handler.sendOneWay(request, descriptor.getSignature(), remainingMillis(timeoutMillis, start),
+                limiter, handler.getNodeLimiter());
+    }
+
+    //等待单向调用写出，连接写缓冲积压时最多等待超时时间
+    private static void awaitWritten(RPCFuture written, long timeoutMillis) throws Throwable {
+        if (timeoutMillis <= 0) {
+            await(written);
+            return;
+        }
+        try {
+            written.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new RuntimeException("One-way request not written within " + timeoutMillis + "ms", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? cause : new RuntimeException(cause.getMessage(), cause);
+        }
+    }
+
+    //对冲或重试：发往exclude以外的节点，使用剩余的超时时间，没有对应的额度或其他可用节点时返回null
+    private RPCFuture sendElsewhere(MethodDescriptor descriptor, Object[] args, SocketAddress exclude, long timeoutMillis,
+                                    long start, boolean hedge) {
+        long remaining = timeoutMillis;
+        if (timeoutMillis > 0) {
+            remaining -= TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (remaining <= 0) {
+                return null;
+            }
+        }
+        ConnectManage connectManage = ConnectManage.getInstance();
+        RpcRequest request = newRequest(descriptor, args);
+        InFlightLimiter limiter = connectManage.getInFlightLimiter(request.getClassName());
+        RpcClientHandler handler = hedge ? connectManage.acquireHedgeHandler(exclude, limiter)
+                : connectManage.acquireRetryHandler(exclude, limiter);
+        if (handler == null) {
+            return null;
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("对冲或重试 {}#{} -> {}", request.getClassName(), request.getMethodName(), handler.getRemotePeer());
+        }
+        return handler.sendRequest(request, descriptor.getSignature(), remaining, limiter, handler.getNodeLimiter());
+    }
+
+    //两份请求中先成功的一份，都失败时以后失败的一份失败
+    private static CompletableFuture<Object> firstSuccess(RPCFuture primary, RPCFuture hedge) {
+        final CompletableFuture<Object> winner = new CompletableFuture<>();
+        final AtomicInteger outstanding = new AtomicInteger(2);
+        BiConsumer<Object, Throwable> action = new BiConsumer<Object, Throwable>() {
+            @Override
+            public void accept(Object result, Throwable cause) {
+                if (cause == null) {
+                    winner.complete(result);
+                } else if (outstanding.decrementAndGet() == 0) {
+                    winner.completeExceptionally(cause);
+                }
             }
+        };
+        primary.whenComplete(action);
+        hedge.whenComplete(action);
+        return winner;
+    }
+
+    //等待调用结果，超时等本地失败不是接口声明的受检异常，转为运行时异常抛出
+    private static Object await(Future<Object> future) throws Throwable {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? cause : new RuntimeException(cause.getMessage(), cause);
         }
-        //获取可用处理机
-        RpcClientHandler handler = ConnectManage.getInstance().chooseHandler();
-        //发送请求
-        RPCFuture rpcFuture = handler.sendRequest(request);
-        //返回远程调用结果
-        return rpcFuture.get();
     }
+
+    //Object上的基础方法在本地处理
+    private Object invokeObjectMethod(Object proxy, Method method, Object[] args) {
+        //获取方法名
+        String name = method.getName();
+        //基础方法
+        if ("equals".equals(name)) {
+            return proxy == args[0];
+        } else if ("hashCode".equals(name)) {
+            return System.identityHashCode(proxy);
+        } else if ("toString".equals(name)) {
+            return proxy.getClass().getName() + "@" +
+                    Integer.toHexString(System.identityHashCode(proxy)) +
+                    ", with InvocationHandler " + this;
+        } else {
+            throw new IllegalStateException(String.valueOf(method));
+        }
+    }
+
     //异步调用
     @Override
     public RPCFuture call(String funcName, Object... args) {
-        RpcClientHandler handler = ConnectManage.getInstance().chooseHandler();
-        RpcRequest request = createRequest(this.clazz.getName(), funcName, args);
-        RPCFuture rpcFuture = handler.sendRequest(request);
+        return call(serializer, funcName, args);
+    }
+
+    @Override
+    public RPCFuture call(byte serializer, String funcName, Object... args) {
+        RPCFuture rpcFuture;
+        MethodDescriptor descriptor = descriptorsByName.get(funcName);
+        if (descriptor != null) {
+            //没有重载的方法直接使用声明的参数类型
+            RpcRequest request = newRequest(descriptor, args);
+            request.setSerializer(serializer);
+            if (descriptor.isOneWay()) {
+                return sendOneWay(descriptor, request, args, timeoutMillis(descriptor.getTimeoutMillis()), false);
+            }
+            rpcFuture = send(request, descriptor.getSignature(), descriptor.routingKey(args),
+                    timeoutMillis(descriptor.getTimeoutMillis()), false);
+        } else {
+            RpcRequest request = createRequest(this.clazz.getName(), funcName, args);
+            request.setSerializer(serializer);
+            request.setCompressThreshold(compressThreshold);
+            rpcFuture = send(request, new MethodSignature(request.getClassName(), funcName, request.getParameterTypes()), null,
+                    timeoutMillis(timeoutMillis), false);
+        }
         return rpcFuture;
     }
-    //创建request
+
+    @Override
+    public List<RPCFuture> callBatch(String funcName, List<Object[]> argsList) {
+        return callBatch(funcName, argsList, false);
+    }
+
+    @Override
+    public List<RPCFuture> callBatch(String funcName, List<Object[]> argsList, boolean parallel) {
+        if (argsList.isEmpty()) {
+            return new ArrayList<>();
+        }
+        MethodDescriptor descriptor = descriptorsByName.get(funcName);
+        List<RpcRequest> requests = new ArrayList<>(argsList.size());
+        MethodSignature signature;
+        long timeout;
+        if (descriptor != null) {
+            for (Object[] args : argsList) {
+                requests.add(newRequest(descriptor, args));
+            }
+            signature = descriptor.getSignature();
+            timeout = timeoutMillis(descriptor.getTimeoutMillis());
+        } else {
+            //重载方法按第一次调用的实参推断参数类型，整个批次使用同一签名
+            RpcRequest first = createRequest(this.clazz.getName(), funcName, argsList.get(0));
+            for (Object[] args : argsList) {
+                RpcRequest request = new RpcRequest();
+                request.setClassName(first.getClassName());
+                request.setMethodName(funcName);
+                request.setParameterTypes(first.getParameterTypes());
+                request.setParameters(args);
+                request.setSerializer(serializer);
+                request.setCompressThreshold(compressThreshold);
+                request.setCaller(first.getCaller());
+                requests.add(request);
+            }
+            signature = new MethodSignature(first.getClassName(), funcName, first.getParameterTypes());
+            timeout = timeoutMillis(timeoutMillis);
+        }
+        List<RPCFuture> futures = new ArrayList<>(requests.size());
+        if (Deadline.isExpired()) {
+            for (RpcRequest request : requests) {
+                futures.add(failed(request, deadlineExceeded(request)));
+            }
+            return futures;
+        }
+        //整个批次发往同一个连接，不按路由键分散；每个元素各占一份服务级和节点级额度，不等待，
+        //从第一个占不到额度的元素起直接以RejectedExecutionException失败
+        ConnectManage connectManage = ConnectManage.getInstance();
+        InFlightLimiter limiter = connectManage.getInFlightLimiter(clazz.getName());
+        RpcClientHandler handler = acquire(requests.get(0), null, limiter, timeout, false);
+        int admitted = 0;
+        if (handler != null) {
+            admitted = 1;
+            while (admitted < requests.size() && connectManage.acquireMore(handler, limiter)) {
+                admitted++;
+            }
+            futures.addAll(handler.sendBatch(new ArrayList<>(requests.subList(0, admitted)), signature, timeout, parallel,
+                    limiter, handler.getNodeLimiter()));
+        }
+        for (RpcRequest request : requests.subList(admitted, requests.size())) {
+            futures.add(failed(request, rejected(request)));
+        }
+        return futures;
+    }
+
+    /**
+     * 选择连接并发送；连接不可写或达到在途上限时，同步调用在超时时间内等待，仍不行抛出RejectedExecutionException，
+     * 异步调用直接返回以RejectedExecutionException失败的future
+     */
+    private RPCFuture send(RpcRequest request, MethodSignature signature, Object routingKey, long timeoutMillis, boolean wait) {
+        if (Deadline.isExpired()) {
+            TimeoutException timeout = deadlineExceeded(request);
+            if (wait) {
+                throw new RuntimeException(timeout.getMessage(), timeout);
+            }
+            return failed(request, timeout);
+        }
+        long start = System.nanoTime();
+        InFlightLimiter limiter = ConnectManage.getInstance().getInFlightLimiter(request.getClassName());
+        RpcClientHandler handler = acquire(request, routingKey, limiter, timeoutMillis, wait);
+        if (handler == null) {
+            RejectedExecutionException rejected = rejected(request);
+            if (wait) {
+                throw rejected;
+            }
+            return failed(request, rejected);
+        }
+        return send(handler, request, signature, limiter, remainingMillis(timeoutMillis, start));
+    }
+
+    //选择连接并占用服务级和节点级的在途额度，不能占用时返回null
+    private RpcClientHandler acquire(RpcRequest request, Object routingKey, InFlightLimiter limiter, long timeoutMillis, boolean wait) {
+        long waitNanos = !wait ? 0 : timeoutMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : Long.MAX_VALUE / 2;
+        return ConnectManage.getInstance().acquireHandler(request.getClassName(), request, routingKey, limiter, waitNanos);
+    }
+
+    //扣除等待连接和额度用去的时间，超时和发给服务端的剩余时间都从这里算起；至少保留1ms，避免变成不超时
+    private static long remainingMillis(long timeoutMillis, long startNanos) {
+        if (timeoutMillis <= 0) {
+            return timeoutMillis;
+        }
+        return Math.max(1, timeoutMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+
+    //在已占用额度的连接上发送，每个请求为对冲和重试额度存入一份
+    private RPCFuture send(RpcClientHandler handler, RpcRequest request, MethodSignature signature,
+                           InFlightLimiter limiter, long timeoutMillis) {
+        ConnectManage.getInstance().depositBudgets();
+        return handler.sendRequest(request, signature, timeoutMillis, limiter, handler.getNodeLimiter());
+    }
+
+    //没有发送就已经失败的调用
+    private static RPCFuture failed(RpcRequest request, Throwable cause) {
+        RPCFuture rpcFuture = new RPCFuture(request);
+        rpcFuture.fail(cause);
+        return rpcFuture;
+    }
+
+    private static RejectedExecutionException rejected(RpcRequest request) {
+        return new RejectedExecutionException("In-flight limit reached: " + request.getClassName() + "#" + request.getMethodName());
+    }
+
+    //在服务方法内发起的嵌套调用继承上游请求的剩余时间，取较小的一个
+    private long timeoutMillis(Long configured) {
+        long timeout = configured != null ? configured : ConnectManage.getInstance().getDefaultTimeoutMillis();
+        long remaining = Deadline.remainingMillis();
+        if (remaining == Long.MAX_VALUE) {
+            return timeout;
+        }
+        //剩余不足1ms的由send直接失败，这里至少保留1ms，避免变成不超时
+        remaining = Math.max(1, remaining);
+        return timeout > 0 ? Math.min(timeout, remaining) : remaining;
+    }
+
+    private static TimeoutException deadlineExceeded(RpcRequest request) {
+        return new TimeoutException("Deadline exceeded before sending: " + request.getClassName() + "#" + request.getMethodName());
+    }
+
+    //包内可见，供ProxyBenchmark测量每次调用的打包开销
+    RpcRequest newRequest(MethodDescriptor descriptor, Object[] args) {
+        RpcRequest request = new RpcRequest();
+        request.setClassName(descriptor.getClassName());
+        request.setMethodName(descriptor.getMethodName());
+        request.setParameterTypes(descriptor.getParameterTypes());
+        request.setParameters(args);
+        request.setSerializer(serializer);
+        request.setCompressThreshold(descriptor.getCompressThreshold());
+        request.setPriority(descriptor.getPriority());
+        request.setReturnType(descriptor.getReturnType());
+        request.setCaller(ConnectManage.getInstance().getCallerId());
+        return request;
+    }
+
+    //创建request 重载方法按实参推断参数类型
     private RpcRequest createRequest(String className, String methodName, Object[] args) {
         RpcRequest request = new RpcRequest();
-        request.setRequestId(UUID.randomUUID().toString());
         request.setClassName(className);
         request.setMethodName(methodName);
         request.setParameters(args);
@@ -99,29 +444,11 @@ public class ObjectProxy<T> implements InvocationHandler, IAsyncObjectProxy {
             parameterTypes[i] = getClassType(args[i]);
         }
         request.setParameterTypes(parameterTypes);
-//        Method[] methods = clazz.getDeclaredMethods();
-//        for (int i = 0; i < methods.length; ++i) {
-//            // Bug: if there are 2 methods have the same name
-//            if (methods[i].getName().equals(methodName)) {
-//                parameterTypes = methods[i].getParameterTypes();
-//                request.setParameterTypes(parameterTypes); // get parameter types
-//                break;
-//            }
-//        }
-
-        LOGGER.debug(className);
-        LOGGER.debug(methodName);
-        //修复代理参数为空时出现的空指针异常 fixbug
-        if (parameterTypes != null) {
-            for (int i = 0; i < parameterTypes.length; ++i) {
-                LOGGER.debug(parameterTypes[i].getName());
-            }
-        }
-        if (args != null)
-            for (int i = 0; i < args.length; ++i) {
-                LOGGER.debug(args[i].toString());
-            }
+        request.setCaller(ConnectManage.getInstance().getCallerId());
 
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("异步调用重载方法 {}#{}", className, methodName);
+        }
         return request;
     }
 
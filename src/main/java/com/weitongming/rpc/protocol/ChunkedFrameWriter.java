@@ -0,0 +1,129 @@
+package com.weitongming.rpc.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * 分片写出，放在RpcEncoder之后（靠近socket一侧）
+ * 帧体超过分片大小的帧拆成多个分片帧轮流写出，同一时刻只有一个分片在途，
+ * 其他帧可以穿插在分片之间发送，大消息不会阻塞同一连接上的小请求
+ * 分片帧格式：长度(4字节) + 魔数 + 标志位(原标志位|分片[|末片]) + 序列化方式 + 流id(4字节) + 分片数据
+ * 旧格式的帧（无帧头）不分片
+ * @author tim.wei
+ */
+public class ChunkedFrameWriter extends ChannelOutboundHandlerAdapter {
+    //分片帧额外的头部：魔数 + 标志位 + 序列化方式 + 流id
+    private static final int CHUNK_HEADER_LENGTH = RpcProtocol.HEADER_LENGTH + 4;
+
+    private final int chunkSize;
+    //等待分片写出的大消息，轮流各写一片
+    private final Queue<PendingFrame> pendingFrames = new ArrayDeque<PendingFrame>();
+    private int streamSequence;
+    private boolean writing;
+
+    public ChunkedFrameWriter() {
+        this(RpcProtocol.DEFAULT_CHUNK_SIZE);
+    }
+
+    public ChunkedFrameWriter(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof ByteBuf) {
+            ByteBuf frame = (ByteBuf) msg;
+            int bodyLength = frame.readableBytes() - 4 - RpcProtocol.HEADER_LENGTH;
+            if (bodyLength > chunkSize && frame.getByte(frame.readerIndex() + 4) == RpcProtocol.MAGIC) {
+                pendingFrames.add(new PendingFrame(frame, promise, ++streamSequence));
+                if (!writing) {
+                    writeNextChunk(ctx);
+                }
+                return;
+            }
+        }
+        ctx.write(msg, promise);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        failAll(new IllegalStateException("Channel closed before chunked frame was written"));
+        super.handlerRemoved(ctx);
+    }
+
+    private void writeNextChunk(final ChannelHandlerContext ctx) {
+        final PendingFrame frame = pendingFrames.poll();
+        if (frame == null) {
+            writing = false;
+            return;
+        }
+        writing = true;
+        int length = Math.min(chunkSize, frame.body.readableBytes());
+        final boolean last = length == frame.body.readableBytes();
+        int flags = frame.flags | RpcProtocol.FLAG_CHUNK | (last ? RpcProtocol.FLAG_LAST_CHUNK : 0);
+
+        ByteBuf header = ctx.alloc().buffer(4 + CHUNK_HEADER_LENGTH);
+        header.writeInt(CHUNK_HEADER_LENGTH + length);
+        header.writeByte(RpcProtocol.MAGIC);
+        header.writeByte(flags);
+        header.writeByte(frame.serializer);
+        header.writeInt(frame.streamId);
+        ctx.write(header);
+        ctx.writeAndFlush(frame.body.readSlice(length).retain()).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (!future.isSuccess()) {
+                    frame.fail(future.cause());
+                    failAll(future.cause());
+                    writing = false;
+                    return;
+                }
+                if (last) {
+                    frame.body.release();
+                    frame.promise.trySuccess();
+                } else {
+                    pendingFrames.add(frame);
+                }
+                //上一片写出之后再写下一片，期间的其他帧可以先发出去
+                writeNextChunk(ctx);
+            }
+        });
+    }
+
+    private void failAll(Throwable cause) {
+        PendingFrame frame;
+        while ((frame = pendingFrames.poll()) != null) {
+            frame.fail(cause);
+        }
+    }
+
+    private static final class PendingFrame {
+        final ByteBuf body;
+        final ChannelPromise promise;
+        final int streamId;
+        final byte flags;
+        final byte serializer;
+
+        PendingFrame(ByteBuf frame, ChannelPromise promise, int streamId) {
+            //跳过长度和魔数，读出原帧头，剩余部分即帧体
+            frame.skipBytes(5);
+            this.flags = frame.readByte();
+            this.serializer = frame.readByte();
+            this.body = frame;
+            this.promise = promise;
+            this.streamId = streamId;
+        }
+
+        void fail(Throwable cause) {
+            body.release();
+            promise.tryFailure(cause);
+        }
+    }
+}
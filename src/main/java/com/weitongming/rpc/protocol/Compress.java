@@ -0,0 +1,19 @@
+package com.weitongming.rpc.protocol;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 压缩注解，标注在服务接口或接口方法上，请求和响应的帧体超过阈值时压缩
+ * 方法上的注解优先于接口上的注解，未标注的服务不压缩
+ *
+ * @author tim.wei
+ */
+@Target({ElementType.TYPE, ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Compress {
+    //帧体达到该字节数才压缩，小于等于0表示不压缩
+    int threshold() default 4096;
+}
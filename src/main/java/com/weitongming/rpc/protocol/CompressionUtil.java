@@ -0,0 +1,135 @@
+package com.weitongming.rpc.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.util.concurrent.FastThreadLocal;
+
+import java.lang.reflect.Method;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 压缩方法（基于JDK Deflater/Inflater）
+ * Deflater、Inflater和缓冲区按线程复用，编解码时即每个EventLoop一份
+ * 压缩后的格式：原始长度(4字节) + deflate数据
+ * @author tim.wei
+ */
+public class CompressionUtil {
+
+    private static final FastThreadLocal<Codec> CODEC = new FastThreadLocal<Codec>() {
+        @Override
+        protected Codec initialValue() {
+            return new Codec();
+        }
+
+        @Override
+        protected void onRemoval(Codec codec) {
+            codec.deflater.end();
+            codec.inflater.end();
+        }
+    };
+
+    private CompressionUtil() {
+    }
+
+    /**
+     * 读取方法或接口上的压缩阈值，未标注返回0
+     */
+    public static int threshold(Class<?> serviceClass, Method method) {
+        Compress compress = method == null ? null : method.getAnnotation(Compress.class);
+        if (compress == null) {
+            compress = serviceClass.getAnnotation(Compress.class);
+        }
+        return compress == null ? 0 : compress.threshold();
+    }
+
+    /**
+     * 原地压缩buf中从index到writerIndex的数据，压缩后不比原数据小则保持原样并返回false
+     */
+    public static boolean compress(ByteBuf buf, int index) {
+        int length = buf.writerIndex() - index;
+        Codec codec = CODEC.get();
+        byte[] input = codec.input(length);
+        buf.getBytes(index, input, 0, length);
+        Deflater deflater = codec.deflater;
+        deflater.reset();
+        deflater.setInput(input, 0, length);
+        deflater.finish();
+        buf.writerIndex(index);
+        buf.writeInt(length);
+        byte[] chunk = codec.chunk;
+        while (!deflater.finished()) {
+            int n = deflater.deflate(chunk);
+            buf.writeBytes(chunk, 0, n);
+            if (buf.writerIndex() - index >= length) {
+                //压缩无收益，还原
+                buf.writerIndex(index);
+                buf.writeBytes(input, 0, length);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 解压in中全部可读数据，返回新分配的堆内存ByteBuf，由调用方释放
+     */
+    public static ByteBuf decompress(ByteBuf in, ByteBufAllocator alloc) throws DataFormatException {
+        int length = in.readInt();
+        if (length < 0 || length > RpcProtocol.MAX_MESSAGE_LENGTH) {
+            throw new DataFormatException("Invalid uncompressed length: " + length);
+        }
+        Codec codec = CODEC.get();
+        Inflater inflater = codec.inflater;
+        inflater.reset();
+        int compressedLength = in.readableBytes();
+        if (in.hasArray()) {
+            inflater.setInput(in.array(), in.arrayOffset() + in.readerIndex(), compressedLength);
+        } else {
+            byte[] input = codec.input(compressedLength);
+            in.getBytes(in.readerIndex(), input, 0, compressedLength);
+            inflater.setInput(input, 0, compressedLength);
+        }
+        in.skipBytes(compressedLength);
+        ByteBuf out = alloc.heapBuffer(length, length);
+        try {
+            int offset = out.arrayOffset();
+            int n = 0;
+            while (n < length) {
+                int inflated = inflater.inflate(out.array(), offset + n, length - n);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += inflated;
+            }
+            if (n != length || !inflater.finished()) {
+                throw new DataFormatException("Corrupted compressed data, expect " + length + " bytes but got " + n);
+            }
+            out.writerIndex(length);
+            return out;
+        } catch (DataFormatException e) {
+            out.release();
+            throw e;
+        }
+    }
+
+    //线程私有的压缩器和缓冲区
+    private static final class Codec {
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        final Inflater inflater = new Inflater();
+        final byte[] chunk = new byte[8192];
+        byte[] input = new byte[8192];
+
+        byte[] input(int length) {
+            //超大的数据不缓存，避免每个线程长期占用大块内存
+            if (length > 1024 * 1024) {
+                return new byte[length];
+            }
+            if (input.length < length) {
+                input = new byte[Math.max(length, input.length * 2)];
+            }
+            return input;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.weitongming.rpc.protocol;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 当前线程正在处理的请求的截止时间（System.nanoTime），服务端在调用服务方法前设置，
+ * 服务方法内通过RpcClient发起的嵌套调用按剩余时间设置超时，已经超时的不再发出
+ * 只对执行服务方法的线程有效，服务方法自行切换线程后需要自己传递
+ * @author tim.wei
+ */
+public final class Deadline {
+
+    private static final ThreadLocal<Long> CURRENT = new ThreadLocal<Long>();
+
+    private Deadline() {
+    }
+
+    //设置当前线程的截止时间，null表示没有截止时间，返回之前的值用于恢复
+    public static Long set(Long deadlineNanos) {
+        Long previous = CURRENT.get();
+        if (deadlineNanos == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(deadlineNanos);
+        }
+        return previous;
+    }
+
+    //剩余毫秒数，没有截止时间返回Long.MAX_VALUE，已经超时返回小于等于0的值
+    public static long remainingMillis() {
+        Long deadline = CURRENT.get();
+        return deadline == null ? Long.MAX_VALUE : TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+    }
+
+    public static boolean isExpired() {
+        Long deadline = CURRENT.get();
+        return deadline != null && deadline - System.nanoTime() <= 0;
+    }
+}
@@ -0,0 +1,179 @@
+package com.weitongming.rpc.protocol;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.jsontype.impl.ClassNameIdResolver;
+import com.fasterxml.jackson.databind.type.TypeFactory;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+
+/**
+ * 基于jackson的序列化
+ * 参数列表和返回结果声明为Object，写出时每个值带上实际类名（["类名", 值]，与jackson的WRAPPER_ARRAY格式相同）；
+ * 读入时不采用对端写入的类名，先保留为JsonNode，由bind按服务方法声明的参数类型或返回类型绑定，
+ * 对端无法指定本端实例化的类
+ * @author tim.wei
+ */
+public class JacksonSerializer implements Serializer {
+
+    private static final ClassNameIdResolver TYPE_IDS =
+            new ClassNameIdResolver(TypeFactory.defaultInstance().constructType(Object.class), TypeFactory.defaultInstance());
+
+    private final ObjectMapper objMapper = new ObjectMapper();
+
+    public JacksonSerializer() {
+        objMapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+        objMapper.disable(SerializationFeature.FAIL_ON_EMPTY_BEANS);
+        objMapper.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        //transient字段（帧头信息）不参与序列化
+        objMapper.enable(MapperFeature.PROPAGATE_TRANSIENT_MARKER);
+        objMapper.addMixIn(RpcRequest.class, RequestMixIn.class);
+        objMapper.addMixIn(RpcResponse.class, ResponseMixIn.class);
+    }
+
+    @Override
+    public byte getId() {
+        return JACKSON;
+    }
+
+    @Override
+    public <T> void serialize(T obj, ByteBuf out) {
+        try {
+            objMapper.writeValue(new ByteBufOutputStream(out), obj);
+        } catch (IOException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public <T> T deserialize(ByteBuf in, Class<T> cls) {
+        try {
+            return objMapper.readValue(new ByteBufInputStream(in), cls);
+        } catch (IOException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public Object bind(Object value, Type type) {
+        if (!(value instanceof JsonNode)) {
+            return value;
+        }
+        try {
+            JsonNode node = (JsonNode) value;
+            return objMapper.readValue(objMapper.treeAsTokens(node),
+                    objMapper.getTypeFactory().constructType(type == null ? Object.class : type));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Can not bind value to " + type + ": " + e.getMessage(), e);
+        }
+    }
+
+    //去掉["类名", 值]的类名，只保留值
+    private static JsonNode untyped(JsonNode node) {
+        if (node.isArray() && node.size() == 2 && node.get(0).isTextual()) {
+            return node.get(1);
+        }
+        return node;
+    }
+
+    private static void writeTyped(Object value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+        if (value == null) {
+            gen.writeNull();
+            return;
+        }
+        gen.writeStartArray();
+        gen.writeString(TYPE_IDS.idFromValue(value));
+        provider.defaultSerializeValue(value, gen);
+        gen.writeEndArray();
+    }
+
+    static final class TypedValueSerializer extends JsonSerializer<Object> {
+        @Override
+        public void serialize(Object value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            writeTyped(value, gen, provider);
+        }
+    }
+
+    static final class TypedArraySerializer extends JsonSerializer<Object[]> {
+        @Override
+        public void serialize(Object[] values, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            gen.writeStartArray();
+            for (Object value : values) {
+                writeTyped(value, gen, provider);
+            }
+            gen.writeEndArray();
+        }
+    }
+
+    //读为JsonNode，等待bind
+    static final class UntypedValueDeserializer extends JsonDeserializer<Object> {
+        @Override
+        public Object deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+            JsonNode node = p.readValueAsTree();
+            return node == null || node.isNull() ? null : untyped(node);
+        }
+    }
+
+    static final class UntypedArrayDeserializer extends JsonDeserializer<Object[]> {
+        @Override
+        public Object[] deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+            JsonNode node = p.readValueAsTree();
+            if (node == null || node.isNull()) {
+                return null;
+            }
+            if (!node.isArray()) {
+                throw ctxt.mappingException(Object[].class);
+            }
+            Object[] values = new Object[node.size()];
+            for (int i = 0; i < values.length; i++) {
+                JsonNode element = node.get(i);
+                values[i] = element.isNull() ? null : untyped(element);
+            }
+            return values;
+        }
+    }
+
+    abstract static class RequestMixIn {
+        @JsonSerialize(using = TypedArraySerializer.class)
+        abstract Object[] getParameters();
+
+        @JsonDeserialize(using = UntypedArrayDeserializer.class)
+        abstract void setParameters(Object[] parameters);
+    }
+
+    abstract static class ResponseMixIn {
+        @JsonSerialize(using = TypedValueSerializer.class)
+        abstract Object getResult();
+
+        @JsonDeserialize(using = UntypedValueDeserializer.class)
+        abstract void setResult(Object result);
+
+        //只忽略isError，error字段本身要显式保留，否则同名属性整个被忽略，错误信息丢失
+        @JsonIgnore
+        abstract boolean isError();
+
+        @JsonProperty
+        abstract String getError();
+
+        @JsonProperty
+        abstract void setError(String error);
+    }
+}
@@ -0,0 +1,62 @@
+package com.weitongming.rpc.protocol;
+
+import java.util.Arrays;
+
+/**
+ * 方法签名（接口名 + 方法名 + 参数类型） 作为连接内方法字典的key
+ * @author tim.wei
+ */
+public final class MethodSignature {
+    //接口名
+    private final String className;
+    //方法名
+    private final String methodName;
+    //参数类型
+    private final Class<?>[] parameterTypes;
+    //签名不可变，预先计算hash
+    private final int hash;
+
+    public MethodSignature(String className, String methodName, Class<?>[] parameterTypes) {
+        this.className = className;
+        this.methodName = methodName;
+        this.parameterTypes = parameterTypes;
+        this.hash = 31 * (31 * className.hashCode() + methodName.hashCode()) + Arrays.hashCode(parameterTypes);
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public String getMethodName() {
+        return methodName;
+    }
+
+    public Class<?>[] getParameterTypes() {
+        return parameterTypes;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof MethodSignature)) {
+            return false;
+        }
+        MethodSignature that = (MethodSignature) o;
+        return hash == that.hash
+                && className.equals(that.className)
+                && methodName.equals(that.methodName)
+                && Arrays.equals(parameterTypes, that.parameterTypes);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return className + "#" + methodName + Arrays.toString(parameterTypes);
+    }
+}
@@ -0,0 +1,57 @@
+package com.weitongming.rpc.protocol;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.internal.PlatformDependent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 服务端和客户端共用的传输层选择：Linux上可选原生epoll（边缘触发），不可用时回退到NIO
+ *
+ * @author tim.wei
+ */
+public final class NettyTransport {
+    private static final Logger LOGGER = LoggerFactory.getLogger(NettyTransport.class);
+
+    private NettyTransport() {
+    }
+
+    //请求使用epoll时检查本机是否可用，不可用则记录原因并回退到NIO
+    public static boolean useEpoll(boolean nativeTransport) {
+        if (!nativeTransport) {
+            return false;
+        }
+        if (!Epoll.isAvailable()) {
+            LOGGER.warn("原生epoll不可用，回退到NIO：" + Epoll.unavailabilityCause());
+            return false;
+        }
+        //当前netty版本的epoll读写要求直接内存，Unsafe不可用时（例如JDK9以上）分配的是堆内存，无法工作
+        if (!PlatformDependent.hasUnsafe()) {
+            LOGGER.warn("sun.misc.Unsafe不可用，原生epoll无法使用直接内存，回退到NIO");
+            return false;
+        }
+        return true;
+    }
+
+    //threads为0时使用netty默认的线程数（CPU核数的两倍）
+    public static EventLoopGroup newEventLoopGroup(boolean epoll, int threads) {
+        return epoll ? new EpollEventLoopGroup(threads) : new NioEventLoopGroup(threads);
+    }
+
+    public static Class<? extends ServerChannel> serverChannelClass(boolean epoll) {
+        return epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+    }
+
+    public static Class<? extends SocketChannel> channelClass(boolean epoll) {
+        return epoll ? EpollSocketChannel.class : NioSocketChannel.class;
+    }
+}
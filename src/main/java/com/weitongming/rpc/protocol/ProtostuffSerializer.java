@@ -0,0 +1,25 @@
+package com.weitongming.rpc.protocol;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * 基于protostuff的序列化，默认方式
+ * @author tim.wei
+ */
+public class ProtostuffSerializer implements Serializer {
+
+    @Override
+    public byte getId() {
+        return PROTOSTUFF;
+    }
+
+    @Override
+    public <T> void serialize(T obj, ByteBuf out) {
+        SerializationUtil.serialize(obj, out);
+    }
+
+    @Override
+    public <T> T deserialize(ByteBuf in, Class<T> cls) {
+        return SerializationUtil.deserialize(in, cls);
+    }
+}
@@ -0,0 +1,122 @@
+package com.weitongming.rpc.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.CorruptedFrameException;
+
+/**
+ * 字节数组透传：参数和返回结果必须是byte[]，原样写入帧中，不做任何编码
+ * 其余字段仍交由protostuff序列化
+ * 格式：protostuff部分长度(4字节) + protostuff部分 + 字节数组个数(4字节) + [长度(4字节，-1为null) + 内容]...
+ * 长度和个数来自对端，解析时先按帧内剩余字节数校验，不合法时抛出CorruptedFrameException，不按对端给的值分配内存
+ * @author tim.wei
+ */
+public class RawSerializer implements Serializer {
+
+    @Override
+    public byte getId() {
+        return RAW;
+    }
+
+    @Override
+    public <T> void serialize(T obj, ByteBuf out) {
+        if (obj instanceof RpcRequest) {
+            RpcRequest request = (RpcRequest) obj;
+            Object[] parameters = request.getParameters();
+            request.setParameters(null);
+            try {
+                writeEnvelope(request, out);
+            } finally {
+                request.setParameters(parameters);
+            }
+            writeRaw(parameters, out);
+        } else if (obj instanceof RpcResponse) {
+            RpcResponse response = (RpcResponse) obj;
+            Object result = response.getResult();
+            response.setResult(null);
+            try {
+                writeEnvelope(response, out);
+            } finally {
+                response.setResult(result);
+            }
+            writeRaw(result == null ? null : new Object[]{result}, out);
+        } else {
+            throw new IllegalArgumentException("Raw serializer can not serialize " + obj.getClass().getName());
+        }
+    }
+
+    @Override
+    public <T> T deserialize(ByteBuf in, Class<T> cls) {
+        int envelopeLength = in.readInt();
+        if (envelopeLength < 0 || envelopeLength > in.readableBytes()) {
+            throw new CorruptedFrameException("Invalid raw envelope length: " + envelopeLength);
+        }
+        T obj = SerializationUtil.deserialize(in.readSlice(envelopeLength), cls);
+        byte[][] raw = readRaw(in);
+        if (obj instanceof RpcRequest) {
+            ((RpcRequest) obj).setParameters(raw);
+        } else if (obj instanceof RpcResponse) {
+            ((RpcResponse) obj).setResult(raw == null ? null : raw[0]);
+        }
+        return obj;
+    }
+
+    //检查参数能否按RAW方式写出，不能时抛出IllegalArgumentException
+    public static void checkRaw(Object[] values) {
+        if (values == null) {
+            return;
+        }
+        for (Object value : values) {
+            if (value != null && !(value instanceof byte[])) {
+                throw new IllegalArgumentException("Raw serializer only supports byte[], but got " + value.getClass().getName());
+            }
+        }
+    }
+
+    private static void writeEnvelope(Object envelope, ByteBuf out) {
+        int lengthIndex = out.writerIndex();
+        out.writeInt(0);
+        SerializationUtil.serialize(envelope, out);
+        out.setInt(lengthIndex, out.writerIndex() - lengthIndex - 4);
+    }
+
+    private static void writeRaw(Object[] values, ByteBuf out) {
+        if (values == null) {
+            out.writeInt(-1);
+            return;
+        }
+        checkRaw(values);
+        out.writeInt(values.length);
+        for (Object value : values) {
+            if (value == null) {
+                out.writeInt(-1);
+            } else {
+                byte[] bytes = (byte[]) value;
+                out.writeInt(bytes.length);
+                out.writeBytes(bytes);
+            }
+        }
+    }
+
+    private static byte[][] readRaw(ByteBuf in) {
+        int count = in.readInt();
+        if (count == -1) {
+            return null;
+        }
+        //每个元素至少有4字节的长度字段
+        if (count < 0 || count > in.readableBytes() / 4) {
+            throw new CorruptedFrameException("Invalid raw value count: " + count);
+        }
+        byte[][] values = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            int length = in.readInt();
+            if (length < -1 || length > in.readableBytes()) {
+                throw new CorruptedFrameException("Invalid raw value length: " + length);
+            }
+            if (length >= 0) {
+                values[i] = new byte[length];
+                in.readBytes(values[i]);
+            }
+        }
+        return values;
+    }
+}
@@ -2,41 +2,145 @@ package com.weitongming.rpc.protocol;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.TooLongFrameException;
 
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
- * RPC Decoder 继承自netty自带的解码器 底层交由protostuff实现
+ * RPC Decoder 继承自netty自带的按长度拆帧解码器，拆帧与反序列化在同一个handler内完成 底层交由protostuff实现
+ * 分片重组时限制单个消息长度、同时重组的消息数和合计占用的内存，后两者超出时关闭连接
  * @author tim.wei
  */
-public class RpcDecoder extends ByteToMessageDecoder {
+public class RpcDecoder extends LengthFieldBasedFrameDecoder {
+    //默认最大帧长度
+    public static final int MAX_FRAME_LENGTH = 65536;
     //解码类
     private Class<?> genericClass;
+    //分片重组后的消息长度上限
+    private final int maxMessageLength;
+    //同时重组的分片消息数上限
+    private final int maxOpenStreams;
+    //重组中的分片消息合计长度上限
+    private final int maxBufferedLength;
+    //正在重组的分片消息：流id -> 已收到的帧体，只在IO线程中读写
+    private final Map<Integer, ByteBuf> chunkedBodies = new HashMap<Integer, ByteBuf>();
+    //chunkedBodies中已收到的字节数合计
+    private int bufferedLength;
 
     public RpcDecoder(Class<?> genericClass) {
+        this(genericClass, MAX_FRAME_LENGTH, RpcProtocol.MAX_MESSAGE_LENGTH);
+    }
+
+    public RpcDecoder(Class<?> genericClass, int maxFrameLength, int maxMessageLength) {
+        this(genericClass, maxFrameLength, maxMessageLength, RpcProtocol.MAX_OPEN_STREAMS, RpcProtocol.MAX_BUFFERED_LENGTH);
+    }
+
+    public RpcDecoder(Class<?> genericClass, int maxFrameLength, int maxMessageLength, int maxOpenStreams, int maxBufferedLength) {
+        //长度字段占4个字节，拆帧时一并跳过
+        super(maxFrameLength, 0, 4, 0, 4);
         this.genericClass = genericClass;
+        this.maxMessageLength = maxMessageLength;
+        this.maxOpenStreams = maxOpenStreams;
+        this.maxBufferedLength = maxBufferedLength;
     }
 
     @Override
-    public final void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
-        if (in.readableBytes() < 4) {
-            return;
+    protected Object decode(ChannelHandlerContext ctx, ByteBuf in) throws Exception {
+        ByteBuf frame = (ByteBuf) super.decode(ctx, in);
+        if (frame == null) {
+            return null;
         }
-        in.markReaderIndex();
-        int dataLength = in.readInt();
-        /*if (dataLength <= 0) {
-            ctx.close();
-        }*/
-        if (in.readableBytes() < dataLength) {
-            in.resetReaderIndex();
-            return;
+        try {
+            if (!frame.isReadable() || frame.getByte(frame.readerIndex()) != RpcProtocol.MAGIC) {
+                //旧格式，没有帧头，直接从帧中解析对象，不再拷贝到字节数组
+                return SerializationUtil.deserialize(frame, genericClass);
+            }
+            frame.skipBytes(1);
+            byte flags = frame.readByte();
+            byte serializer = frame.readByte();
+            if ((flags & RpcProtocol.FLAG_CHUNK) != 0) {
+                ByteBuf chunk = frame;
+                frame = appendChunk(ctx, chunk, (flags & RpcProtocol.FLAG_LAST_CHUNK) != 0);
+                chunk.release();
+                if (frame == null) {
+                    //分片未收齐
+                    return null;
+                }
+            }
+            if ((flags & RpcProtocol.FLAG_COMPRESSED) != 0) {
+                ByteBuf compressed = frame;
+                frame = CompressionUtil.decompress(compressed, ctx.alloc());
+                compressed.release();
+            }
+            RpcMessage message = (RpcMessage) SerializerFactory.get(serializer).deserialize(frame, genericClass);
+            //记下对端使用的序列化方式，响应时沿用
+            message.setSerializer(serializer);
+            return message;
+        } finally {
+            if (frame != null) {
+                frame.release();
+            }
         }
-        byte[] data = new byte[dataLength];
-        in.readBytes(data);
-        //字节转换对象
-        Object obj = SerializationUtil.deserialize(data, genericClass);
-        out.add(obj);
+    }
+
+    //追加分片，收到末片时返回完整帧体，否则返回null
+    private ByteBuf appendChunk(ChannelHandlerContext ctx, ByteBuf chunk, boolean last) throws TooLongFrameException {
+        int streamId = chunk.readInt();
+        ByteBuf body = chunkedBodies.get(streamId);
+        if (body == null) {
+            if (chunkedBodies.size() >= maxOpenStreams) {
+                throw abort(ctx, "Chunked streams exceed " + maxOpenStreams);
+            }
+            body = ctx.alloc().buffer(chunk.readableBytes() * 2);
+            chunkedBodies.put(streamId, body);
+        }
+        if (body.readableBytes() + chunk.readableBytes() > maxMessageLength) {
+            chunkedBodies.remove(streamId);
+            bufferedLength -= body.readableBytes();
+            body.release();
+            throw new TooLongFrameException("Chunked message exceeds " + maxMessageLength + " bytes");
+        }
+        if (bufferedLength + chunk.readableBytes() > maxBufferedLength) {
+            throw abort(ctx, "Chunked messages exceed " + maxBufferedLength + " bytes in total");
+        }
+        //拷贝出分片，避免切片长期引用解码器的累积缓冲区
+        bufferedLength += chunk.readableBytes();
+        body.writeBytes(chunk);
+        if (!last) {
+            return null;
+        }
+        chunkedBodies.remove(streamId);
+        bufferedLength -= body.readableBytes();
+        return body;
+    }
+
+    //对端同时发来过多的分片消息，释放已收到的部分并关闭连接
+    private TooLongFrameException abort(ChannelHandlerContext ctx, String message) {
+        releaseChunks();
+        ctx.close();
+        return new TooLongFrameException(message);
+    }
+
+    private void releaseChunks() {
+        for (ByteBuf body : chunkedBodies.values()) {
+            body.release();
+        }
+        chunkedBodies.clear();
+        bufferedLength = 0;
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        releaseChunks();
+        super.channelInactive(ctx);
+    }
+
+    //父类默认会把帧拷贝到新的ByteBuf，这里改为共享内存的切片
+    @Override
+    protected ByteBuf extractFrame(ChannelHandlerContext ctx, ByteBuf buffer, int index, int length) {
+        return buffer.slice(index, length).retain();
     }
 
 }
@@ -3,12 +3,19 @@ package com.weitongming.rpc.protocol;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToByteEncoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * RPC Encoder 继承自netty自带的编码器 底层交由protostuff实现
+ * 响应编码失败时（例如RAW方式的服务返回了非byte[]结果）改为写出同一id的错误响应，调用方不必等到超时
  * @author tim.wei
  */
 public class RpcEncoder extends MessageToByteEncoder {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RpcEncoder.class);
 
     private Class<?> genericClass;
 
@@ -19,10 +26,60 @@ public class RpcEncoder extends MessageToByteEncoder {
     @Override
     public void encode(ChannelHandlerContext ctx, Object in, ByteBuf out) throws Exception {
         if (genericClass.isInstance(in)) {
-            byte[] data = SerializationUtil.serialize(in);
-            //byte[] data = JsonUtil.serialize(in); // Not use this, have some bugs
-            out.writeInt(data.length);
-            out.writeBytes(data);
+            int startIndex = out.writerIndex();
+            try {
+                encode((RpcMessage) in, out);
+            } catch (RuntimeException e) {
+                if (!(in instanceof RpcResponse)) {
+                    //请求编码失败由写出结果通知调用方
+                    throw e;
+                }
+                LOGGER.error("响应编码失败，改为返回错误", e);
+                out.writerIndex(startIndex);
+                encode(encodeFailure((RpcResponse) in, e), out);
+            }
+        }
+    }
+
+    private static void encode(RpcMessage message, ByteBuf out) {
+        //先占位长度字段，直接序列化进out后再回填长度
+        int lengthIndex = out.writerIndex();
+        out.writeInt(0);
+        byte serializer = message.getSerializer();
+        if (serializer == RpcProtocol.LEGACY) {
+            //对端可能是旧版本，不写帧头
+            SerializationUtil.serialize(message, out);
+        } else {
+            out.writeByte(RpcProtocol.MAGIC);
+            int flagsIndex = out.writerIndex();
+            out.writeByte(0);
+            out.writeByte(serializer);
+            int bodyIndex = out.writerIndex();
+            SerializerFactory.get(serializer).serialize(message, out);
+            //帧体达到阈值时原地压缩并回填标志位
+            int threshold = message.getCompressThreshold();
+            if (threshold > 0 && out.writerIndex() - bodyIndex >= threshold && CompressionUtil.compress(out, bodyIndex)) {
+                out.setByte(flagsIndex, RpcProtocol.FLAG_COMPRESSED);
+            }
+        }
+        out.setInt(lengthIndex, out.writerIndex() - lengthIndex - 4);
+    }
+
+    //同一id的错误响应，批量响应的每个元素各自返回错误
+    private static RpcResponse encodeFailure(RpcResponse response, Exception cause) {
+        RpcResponse failure = new RpcResponse();
+        failure.setSerializer(response.getSerializer());
+        if (response.getBatch() != null) {
+            List<RpcResponse> batch = new ArrayList<RpcResponse>(response.getBatch().size());
+            for (RpcResponse element : response.getBatch()) {
+                batch.add(encodeFailure(element, cause));
+            }
+            failure.setBatch(batch);
+        } else {
+            failure.setId(response.getId());
+            failure.setRequestId(response.getRequestId());
+            failure.setError("Failed to encode response: " + cause);
         }
+        return failure;
     }
 }
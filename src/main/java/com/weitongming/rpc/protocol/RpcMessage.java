@@ -0,0 +1,18 @@
+package com.weitongming.rpc.protocol;
+
+/**
+ * 请求与响应共有的帧头信息，不参与序列化
+ * @author tim.wei
+ */
+public interface RpcMessage {
+
+    //帧所使用的序列化方式，见Serializer.getId()
+    byte getSerializer();
+
+    void setSerializer(byte serializer);
+
+    //帧体达到该字节数时压缩，0表示不压缩
+    int getCompressThreshold();
+
+    void setCompressThreshold(int compressThreshold);
+}
@@ -0,0 +1,34 @@
+package com.weitongming.rpc.protocol;
+
+/**
+ * 协议常量
+ * 帧格式：长度(4字节) + 魔数(1字节) + 标志位(1字节) + 序列化方式(1字节) + 帧体
+ * 分片帧在序列化方式之后多一个流id(4字节)，见ChunkedFrameWriter
+ * 旧版本的帧没有帧头，帧体直接是protostuff数据，其首字节是字段tag，不可能为0，据此区分新旧格式
+ *
+ * @author tim.wei
+ */
+public interface RpcProtocol {
+
+    byte MAGIC = 0;
+    //魔数 + 标志位 + 序列化方式
+    int HEADER_LENGTH = 3;
+    //序列化方式为0表示按旧格式收发（无帧头，protostuff）
+    byte LEGACY = 0;
+
+    //标志位：帧体已压缩
+    byte FLAG_COMPRESSED = 0x01;
+    //标志位：分片帧
+    byte FLAG_CHUNK = 0x02;
+    //标志位：最后一个分片
+    byte FLAG_LAST_CHUNK = 0x04;
+
+    //默认分片大小，需小于帧长度上限
+    int DEFAULT_CHUNK_SIZE = 32 * 1024;
+    //分片重组或解压后的消息长度上限，限制单个消息占用的内存
+    int MAX_MESSAGE_LENGTH = 16 * 1024 * 1024;
+    //每个连接同时重组的分片消息数上限
+    int MAX_OPEN_STREAMS = 256;
+    //每个连接重组中的分片消息合计占用的内存上限
+    int MAX_BUFFERED_LENGTH = 64 * 1024 * 1024;
+}
@@ -1,10 +1,16 @@
 package com.weitongming.rpc.protocol;
 
+import java.lang.reflect.Type;
+import java.util.List;
+
 /**
  * RPC Request 封装远程调用的参数
  * @author tim.wei
  */
-public class RpcRequest {
+public class RpcRequest implements RpcMessage {
+
+    public static final byte PRIORITY_NORMAL = 0;
+    public static final byte PRIORITY_INTERACTIVE = 1;
 
     private String requestId;
     //类名
@@ -15,6 +21,31 @@ public class RpcRequest {
     private Class<?>[] parameterTypes;
     // 参数列表
     private Object[] parameters;
+    //以下字段为精简头部新增，必须追加在末尾以保持protostuff字段编号与旧版本兼容
+    //连接内自增的数字请求id，旧版本请求为0
+    private long id;
+    //连接内方法字典中的方法id，首次发送时同时携带完整签名，之后只携带方法id
+    private int methodId;
+    //帧头中的序列化方式，不参与序列化
+    private transient byte serializer;
+    //帧头中的压缩阈值，不参与序列化
+    private transient int compressThreshold;
+    //批量调用：不为null时本请求只是一个信封，各元素是独立的请求，各自携带id和方法id，只发给支持精简头部的对端
+    private List<RpcRequest> batch;
+    //批量调用的各元素是否在服务端线程池中并行执行
+    private boolean parallel;
+    //发送时剩余的超时毫秒数，0表示不限，服务端以收到请求的时间为起点换算截止时间，不依赖两端时钟一致
+    private long budgetMillis;
+    //服务端收到请求时换算出的截止时间（System.nanoTime），0表示不限，不参与序列化
+    private transient long deadlineNanos;
+    //优先级，PRIORITY_INTERACTIVE的请求在服务端线程池中严格优先
+    private byte priority;
+    //调用方标识，服务端按调用方做公平排队，为null时服务端使用连接的对端地址
+    private String caller;
+    //单向调用，服务端执行后不返回响应
+    private boolean oneWay;
+    //客户端期望的返回类型，按它绑定响应结果，不参与序列化
+    private transient Type returnType;
 
     public String getRequestId() {
         return requestId;
@@ -55,4 +86,104 @@ public class RpcRequest {
     public void setParameters(Object[] parameters) {
         this.parameters = parameters;
     }
-}
\ No newline at end of file
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public int getMethodId() {
+        return methodId;
+    }
+
+    public void setMethodId(int methodId) {
+        this.methodId = methodId;
+    }
+
+    @Override
+    public byte getSerializer() {
+        return serializer;
+    }
+
+    @Override
+    public void setSerializer(byte serializer) {
+        this.serializer = serializer;
+    }
+
+    @Override
+    public int getCompressThreshold() {
+        return compressThreshold;
+    }
+
+    @Override
+    public void setCompressThreshold(int compressThreshold) {
+        this.compressThreshold = compressThreshold;
+    }
+
+    public List<RpcRequest> getBatch() {
+        return batch;
+    }
+
+    public void setBatch(List<RpcRequest> batch) {
+        this.batch = batch;
+    }
+
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    public long getBudgetMillis() {
+        return budgetMillis;
+    }
+
+    public void setBudgetMillis(long budgetMillis) {
+        this.budgetMillis = budgetMillis;
+    }
+
+    public long getDeadlineNanos() {
+        return deadlineNanos;
+    }
+
+    public void setDeadlineNanos(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    public byte getPriority() {
+        return priority;
+    }
+
+    public void setPriority(byte priority) {
+        this.priority = priority;
+    }
+
+    public String getCaller() {
+        return caller;
+    }
+
+    public void setCaller(String caller) {
+        this.caller = caller;
+    }
+
+    public boolean isOneWay() {
+        return oneWay;
+    }
+
+    public void setOneWay(boolean oneWay) {
+        this.oneWay = oneWay;
+    }
+
+    public Type getReturnType() {
+        return returnType;
+    }
+
+    public void setReturnType(Type returnType) {
+        this.returnType = returnType;
+    }
+}
@@ -1,16 +1,28 @@
 package com.weitongming.rpc.protocol;
 
+import java.util.List;
+
 /**
  * RPC Response 返回的调用结果
  * @author tim.wei
  */
-public class RpcResponse {
+public class RpcResponse implements RpcMessage {
     //
     private String requestId;
     //
     private String error;
     //远程执行结果
     private Object result;
+    //数字请求id，新版本只回传该字段，必须追加在末尾以保持protostuff字段编号与旧版本兼容
+    private long id;
+    //帧头中的序列化方式，不参与序列化
+    private transient byte serializer;
+    //帧头中的压缩阈值，不参与序列化
+    private transient int compressThreshold;
+    //批量响应：不为null时本响应只是一个信封，各元素按自己的id完成对应的请求
+    private List<RpcResponse> batch;
+    //服务端过载，请求没有执行，可以换一个节点重试
+    private boolean overloaded;
 
     public boolean isError() {
         return error != null;
@@ -39,4 +51,48 @@ public class RpcResponse {
     public void setResult(Object result) {
         this.result = result;
     }
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    @Override
+    public byte getSerializer() {
+        return serializer;
+    }
+
+    @Override
+    public void setSerializer(byte serializer) {
+        this.serializer = serializer;
+    }
+
+    @Override
+    public int getCompressThreshold() {
+        return compressThreshold;
+    }
+
+    @Override
+    public void setCompressThreshold(int compressThreshold) {
+        this.compressThreshold = compressThreshold;
+    }
+
+    public List<RpcResponse> getBatch() {
+        return batch;
+    }
+
+    public void setBatch(List<RpcResponse> batch) {
+        this.batch = batch;
+    }
+
+    public boolean isOverloaded() {
+        return overloaded;
+    }
+
+    public void setOverloaded(boolean overloaded) {
+        this.overloaded = overloaded;
+    }
 }
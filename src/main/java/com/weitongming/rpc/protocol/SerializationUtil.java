@@ -4,9 +4,13 @@ import com.dyuproject.protostuff.LinkedBuffer;
 import com.dyuproject.protostuff.ProtostuffIOUtil;
 import com.dyuproject.protostuff.Schema;
 import com.dyuproject.protostuff.runtime.RuntimeSchema;
+import io.netty.buffer.ByteBuf;
+import io.netty.util.concurrent.FastThreadLocal;
 import org.objenesis.Objenesis;
 import org.objenesis.ObjenesisStd;
 
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -20,6 +24,14 @@ public class SerializationUtil {
 
     private static Objenesis objenesis = new ObjenesisStd(true);
 
+    //每个线程（编解码时即每个EventLoop）复用的缓冲区，避免每次序列化都重新分配
+    private static final FastThreadLocal<Scratch> SCRATCH = new FastThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
     private SerializationUtil() {
     }
 
@@ -52,12 +64,32 @@ public class SerializationUtil {
         }
     }
 
+    /**
+     * 序列化（对象 -> ByteBuf）直接写入目标ByteBuf，不产生中间字节数组，返回写入的字节数
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> int serialize(T obj, ByteBuf out) {
+        Class<T> cls = (Class<T>) obj.getClass();
+        Scratch scratch = SCRATCH.get();
+        ByteBufOutput output = scratch.output;
+        output.buf = out;
+        try {
+            Schema<T> schema = getSchema(cls);
+            return ProtostuffIOUtil.writeTo(output, obj, schema, scratch.buffer);
+        } catch (Exception e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        } finally {
+            output.buf = null;
+            scratch.buffer.clear();
+        }
+    }
+
     /**
      * 反序列化（字节数组 -> 对象）底层交由protostuff实现
      */
     public static <T> T deserialize(byte[] data, Class<T> cls) {
         try {
-            T message = (T) objenesis.newInstance(cls);
+            T message = objenesis.newInstance(cls);
             Schema<T> schema = getSchema(cls);
             ProtostuffIOUtil.mergeFrom(data, message, schema);
             return message;
@@ -65,4 +97,79 @@ public class SerializationUtil {
             throw new IllegalStateException(e.getMessage(), e);
         }
     }
+
+    /**
+     * 反序列化（ByteBuf -> 对象）堆内存直接解析底层数组，直接内存借助线程私有缓冲流式解析，读完后跳过已消费的字节
+     */
+    public static <T> T deserialize(ByteBuf in, Class<T> cls) {
+        try {
+            T message = objenesis.newInstance(cls);
+            Schema<T> schema = getSchema(cls);
+            int length = in.readableBytes();
+            if (in.hasArray()) {
+                ProtostuffIOUtil.mergeFrom(in.array(), in.arrayOffset() + in.readerIndex(), length, message, schema);
+                in.skipBytes(length);
+            } else {
+                Scratch scratch = SCRATCH.get();
+                ByteBufInput input = scratch.input;
+                input.buf = in;
+                try {
+                    ProtostuffIOUtil.mergeFrom(input, message, schema, scratch.buffer);
+                } finally {
+                    input.buf = null;
+                }
+            }
+            return message;
+        } catch (Exception e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    //线程私有的编解码缓冲：序列化时protostuff的LinkedBuffer满了之后会刷入ByteBufOutput，反序列化时作为读缓冲
+    private static final class Scratch {
+        final LinkedBuffer buffer = LinkedBuffer.allocate(LinkedBuffer.DEFAULT_BUFFER_SIZE);
+        final ByteBufOutput output = new ByteBufOutput();
+        final ByteBufInput input = new ByteBufInput();
+    }
+
+    //可复用的OutputStream，直接写入当前绑定的ByteBuf
+    private static final class ByteBufOutput extends OutputStream {
+        ByteBuf buf;
+
+        @Override
+        public void write(int b) {
+            buf.writeByte(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            buf.writeBytes(b, off, len);
+        }
+    }
+
+    //可复用的InputStream，直接读取当前绑定的ByteBuf
+    private static final class ByteBufInput extends InputStream {
+        ByteBuf buf;
+
+        @Override
+        public int read() {
+            return buf.isReadable() ? buf.readUnsignedByte() : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int readable = buf.readableBytes();
+            if (readable == 0) {
+                return -1;
+            }
+            len = Math.min(readable, len);
+            buf.readBytes(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return buf.readableBytes();
+        }
+    }
 }
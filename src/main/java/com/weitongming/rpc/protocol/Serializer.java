@@ -0,0 +1,34 @@
+package com.weitongming.rpc.protocol;
+
+import io.netty.buffer.ByteBuf;
+
+import java.lang.reflect.Type;
+
+/**
+ * 序列化扩展接口，实现类通过SerializerFactory.register注册，
+ * 或在META-INF/services/com.weitongming.rpc.protocol.Serializer中声明后自动加载
+ * @author tim.wei
+ */
+public interface Serializer {
+
+    byte PROTOSTUFF = 1;
+    byte JACKSON = 2;
+    byte RAW = 3;
+
+    //序列化方式id，写入帧头，收发两端据此选择同一种实现
+    byte getId();
+
+    //序列化（对象 -> ByteBuf）直接写入out
+    <T> void serialize(T obj, ByteBuf out);
+
+    //反序列化（ByteBuf -> 对象）读取in中全部可读字节
+    <T> T deserialize(ByteBuf in, Class<T> cls);
+
+    /**
+     * 把反序列化得到的参数或返回结果绑定为声明类型，服务端解析出方法后、客户端完成调用前调用；
+     * 反序列化时不按对端写入的类型创建对象的实现需要覆盖，type为null时按Object绑定
+     */
+    default Object bind(Object value, Type type) {
+        return value;
+    }
+}
@@ -0,0 +1,40 @@
+package com.weitongming.rpc.protocol;
+
+import java.util.ServiceLoader;
+
+/**
+ * 序列化方式注册表，按帧头中的id查找
+ * @author tim.wei
+ */
+public class SerializerFactory {
+
+    private static final Serializer[] serializers = new Serializer[256];
+
+    static {
+        register(new ProtostuffSerializer());
+        register(new JacksonSerializer());
+        register(new RawSerializer());
+        //SPI扩展
+        for (Serializer serializer : ServiceLoader.load(Serializer.class)) {
+            register(serializer);
+        }
+    }
+
+    private SerializerFactory() {
+    }
+
+    public static void register(Serializer serializer) {
+        if (serializer.getId() == RpcProtocol.LEGACY) {
+            throw new IllegalArgumentException("Serializer id 0 is reserved");
+        }
+        serializers[serializer.getId() & 0xff] = serializer;
+    }
+
+    public static Serializer get(byte id) {
+        Serializer serializer = serializers[id & 0xff];
+        if (serializer == null) {
+            throw new IllegalStateException("Unknown serializer id: " + id);
+        }
+        return serializer;
+    }
+}
@@ -0,0 +1,90 @@
+package com.weitongming.rpc.protocol;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelPromise;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 合并写：任意线程写入的消息先入队，由IO线程的一个任务批量写出后只flush一次
+ * 默认在下一次事件循环时写出；配置了延迟时最多等待该延迟，积压达到批量大小、读完一批消息或连接断开时立即写出
+ * 高并发下多个请求/响应合并为一次系统调用和一个跨线程任务
+ * @author tim.wei
+ */
+public class WriteBatcher {
+
+    private final Channel channel;
+    //积压达到该数量时立即写出
+    private final int maxBatchSize;
+    //最长等待时间，0表示下一次事件循环即写出
+    private final long maxDelayNanos;
+
+    private final Queue<PendingWrite> queue = new ConcurrentLinkedQueue<PendingWrite>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            //先清标记再取队列，取队列期间新入队的消息会重新调度
+            scheduled.set(false);
+            flush();
+        }
+    };
+
+    public WriteBatcher(Channel channel, int maxBatchSize, long maxDelayMicros) {
+        this.channel = channel;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+    }
+
+    public ChannelFuture write(Object msg) {
+        ChannelPromise promise = channel.newPromise();
+        queue.add(new PendingWrite(msg, promise));
+        int count = pendingCount.incrementAndGet();
+        if (count >= maxBatchSize) {
+            //积压达到批量大小，不再等待；已在IO线程中时直接写出
+            if (channel.eventLoop().inEventLoop()) {
+                flush();
+            } else {
+                channel.eventLoop().execute(flushTask);
+            }
+        } else if (scheduled.compareAndSet(false, true)) {
+            if (maxDelayNanos > 0) {
+                channel.eventLoop().schedule(flushTask, maxDelayNanos, TimeUnit.NANOSECONDS);
+            } else {
+                channel.eventLoop().execute(flushTask);
+            }
+        }
+        return promise;
+    }
+
+    //在IO线程中执行；读完一批消息或连接断开时由handler直接调用，不再等待延迟
+    public void flush() {
+        int written = 0;
+        PendingWrite pendingWrite;
+        while ((pendingWrite = queue.poll()) != null) {
+            channel.write(pendingWrite.msg, pendingWrite.promise);
+            written++;
+        }
+        if (written > 0) {
+            pendingCount.addAndGet(-written);
+            channel.flush();
+        }
+    }
+
+    private static final class PendingWrite {
+        final Object msg;
+        final ChannelPromise promise;
+
+        PendingWrite(Object msg, ChannelPromise promise) {
+            this.msg = msg;
+            this.promise = promise;
+        }
+    }
+}
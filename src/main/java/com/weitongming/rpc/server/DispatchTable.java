@@ -0,0 +1,125 @@
+package com.weitongming.rpc.server;
+
+import com.weitongming.rpc.protocol.CompressionUtil;
+import com.weitongming.rpc.protocol.MethodSignature;
+import net.sf.cglib.reflect.FastClass;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 服务分发表，启动时把所有@RpcService接口方法解析为ServiceMethod，之后只读
+ * 请求处理时只需按方法签名或下标查表，不再创建FastClass、查找方法
+ * @author tim.wei
+ */
+public class DispatchTable {
+
+    private static final Class<?>[] NO_PARAMETER_TYPES = new Class<?>[0];
+
+    private final ServiceMethod[] methods;
+    private final Map<MethodSignature, ServiceMethod> signatureMap;
+    //@Execution标注的元素（类或方法） -> 执行器，同一个标注元素共用一个执行器
+    private final Map<Object, ServiceExecutor> executors = new HashMap<Object, ServiceExecutor>();
+    //接口名 -> 服务统计
+    private final Map<String, ServiceStats> serviceStats = new LinkedHashMap<String, ServiceStats>();
+    //找不到方法的单向调用次数，这类请求不属于任何服务，也没有响应告知调用方
+    private final AtomicLong unresolvedOneWay = new AtomicLong();
+
+    /**
+     * @param handlerMap 接口名 -> 服务实现bean
+     */
+    public DispatchTable(Map<String, Object> handlerMap) {
+        List<ServiceMethod> methodList = new ArrayList<ServiceMethod>();
+        Map<MethodSignature, ServiceMethod> signatureMap = new HashMap<MethodSignature, ServiceMethod>();
+        for (Object serviceBean : handlerMap.values()) {
+            RpcService rpcService = serviceBean.getClass().getAnnotation(RpcService.class);
+            Class<?> interfaceClass = rpcService.value();
+            FastClass serviceFastClass = FastClass.create(serviceBean.getClass());
+            ServiceStats stats = new ServiceStats(interfaceClass.getName());
+            serviceStats.put(interfaceClass.getName(), stats);
+            for (Method method : interfaceClass.getMethods()) {
+                MethodSignature signature = new MethodSignature(interfaceClass.getName(), method.getName(), method.getParameterTypes());
+                ServiceMethod serviceMethod = new ServiceMethod(methodList.size(), signature, serviceBean,
+                        serviceFastClass.getMethod(method.getName(), method.getParameterTypes()),
+                        CompressionUtil.threshold(interfaceClass, method),
+                        method.getGenericParameterTypes(), rpcService.serializers(),
+                        executor(interfaceClass, serviceBean.getClass(), method), stats);
+                methodList.add(serviceMethod);
+                signatureMap.put(signature, serviceMethod);
+            }
+        }
+        this.methods = methodList.toArray(new ServiceMethod[methodList.size()]);
+        this.signatureMap = signatureMap;
+    }
+
+    //按实现方法、实现类、接口方法、接口的顺序查找@Execution
+    private ServiceExecutor executor(Class<?> interfaceClass, Class<?> implClass, Method method) {
+        Object[] elements;
+        try {
+            elements = new Object[]{implClass.getMethod(method.getName(), method.getParameterTypes()), implClass, method, interfaceClass};
+        } catch (NoSuchMethodException e) {
+            elements = new Object[]{implClass, method, interfaceClass};
+        }
+        for (Object element : elements) {
+            Execution execution = element instanceof Method ? ((Method) element).getAnnotation(Execution.class)
+                    : ((Class<?>) element).getAnnotation(Execution.class);
+            if (execution != null) {
+                ServiceExecutor executor = executors.get(element);
+                if (executor == null) {
+                    String name = element instanceof Method
+                            ? interfaceClass.getSimpleName() + "." + method.getName() : interfaceClass.getSimpleName();
+                    executor = ServiceExecutor.create(name, execution);
+                    executors.put(element, executor);
+                }
+                return executor;
+            }
+        }
+        return ServiceExecutor.SHARED;
+    }
+
+    //接口名 -> 服务统计，只读
+    public Map<String, ServiceStats> getServiceStats() {
+        return Collections.unmodifiableMap(serviceStats);
+    }
+
+    void recordUnresolvedOneWay() {
+        unresolvedOneWay.incrementAndGet();
+    }
+
+    public long getUnresolvedOneWayCount() {
+        return unresolvedOneWay.get();
+    }
+
+    //关闭各服务的独立执行器
+    public void shutdown() {
+        for (ServiceExecutor executor : executors.values()) {
+            executor.shutdown();
+        }
+    }
+
+    public ServiceMethod get(int id) {
+        return methods[id];
+    }
+
+    public int size() {
+        return methods.length;
+    }
+
+    /**
+     * 按方法签名查找，找不到返回null
+     * 无参方法的参数类型经protostuff传输后为null，按空数组处理
+     */
+    public ServiceMethod find(String className, String methodName, Class<?>[] parameterTypes) {
+        if (className == null || methodName == null) {
+            return null;
+        }
+        return signatureMap.get(new MethodSignature(className, methodName,
+                parameterTypes == null ? NO_PARAMETER_TYPES : parameterTypes));
+    }
+}
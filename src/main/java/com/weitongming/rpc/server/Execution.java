@@ -0,0 +1,54 @@
+package com.weitongming.rpc.server;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 服务方法的执行方式，标注在服务实现类、实现方法或服务接口、接口方法上
+ * 查找顺序：实现方法、实现类、接口方法、接口，未标注的方法在RpcServer的共享线程池中执行
+ * 标注在类上的独立线程池由该服务的所有方法共用，标注在方法上的由该方法独占
+ *
+ * @author tim.wei
+ */
+@Target({ElementType.TYPE, ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Execution {
+
+    Mode value() default Mode.SHARED;
+
+    //独立线程池的线程数
+    int threads() default 8;
+
+    //独立线程池的队列长度，0表示不排队；虚拟线程模式下为同时执行的任务数上限
+    int queueSize() default 1024;
+
+    //线程池或虚拟线程数达到上限时的处理方式
+    Rejection rejection() default Rejection.ERROR;
+
+    //排队时间目标值，一个统计周期内的最小排队时间超过该值时拒绝新请求并丢弃排队过久的任务，
+    //小于等于0（默认）表示不按排队时间拒绝；共享线程池、独立线程池都按该服务自己任务的排队时间判断，虚拟线程不排队，不适用
+    long queueTargetMillis() default 0;
+
+    //排队时间的统计周期
+    long queueIntervalMillis() default 100;
+
+    enum Mode {
+        //在IO线程内直接执行，只适合不阻塞的内存操作，省去线程切换
+        INLINE,
+        //RpcServer的共享线程池
+        SHARED,
+        //独立线程池，慢服务不会占满共享线程池
+        BULKHEAD,
+        //每个请求一个虚拟线程，需要JDK 21及以上，不支持时退化为独立线程池
+        VIRTUAL
+    }
+
+    enum Rejection {
+        //立即返回错误响应
+        ERROR,
+        //在IO线程内直接执行，该连接暂停读取，向客户端施加背压
+        CALLER_RUNS
+    }
+}
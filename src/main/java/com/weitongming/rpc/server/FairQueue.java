@@ -0,0 +1,327 @@
+package com.weitongming.rpc.server;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 服务线程池的任务队列：交互类请求严格优先，按到达顺序执行；其余请求按调用方做加权公平排队（start-time fair queuing），
+ * 一直有积压的调用方按权重分享出队机会，不能挤占其他调用方的线程；入队出队都是O(log n)
+ * 不是Tagged的任务（例如RpcServer.submit提交的任务）归入同一个默认调用方
+ * @author tim.wei
+ */
+class FairQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    //带调用方和优先级的任务
+    interface Tagged {
+        String getCaller();
+
+        boolean isInteractive();
+    }
+
+    //权重为1的调用方每个请求推进的虚拟时间
+    private static final long COST = 1 << 20;
+    //调用方 -> 权重，未配置的为1，所有队列共用
+    private static volatile Map<String, Integer> weights = Collections.emptyMap();
+
+    private final int capacity;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final ArrayDeque<Runnable> interactive = new ArrayDeque<Runnable>();
+    private final PriorityQueue<Entry> fair = new PriorityQueue<Entry>();
+    //有任务排队的调用方，排空后移除，不为空闲调用方保留额度
+    private final Map<String, Flow> flows = new HashMap<String, Flow>();
+    //最近出队任务的开始标签
+    private long virtualTime;
+    private long sequence;
+    private int count;
+
+    FairQueue(int capacity) {
+        this.capacity = capacity;
+    }
+
+    static void setWeights(Map<String, Integer> callerWeights) {
+        weights = new HashMap<String, Integer>(callerWeights);
+    }
+
+    @Override
+    public boolean offer(Runnable task) {
+        lock.lock();
+        try {
+            if (count >= capacity) {
+                return false;
+            }
+            enqueue(task);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Runnable task) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count >= capacity) {
+                notFull.await();
+            }
+            enqueue(task);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable task, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count >= capacity) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            enqueue(task);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //加锁后调用：交互类直接排入优先队列，其余按调用方计算开始标签
+    private void enqueue(Runnable task) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        Tagged tagged = task instanceof Tagged ? (Tagged) task : null;
+        if (tagged != null && tagged.isInteractive()) {
+            interactive.add(task);
+        } else {
+            String caller = tagged == null || tagged.getCaller() == null ? "" : tagged.getCaller();
+            Flow flow = flows.get(caller);
+            if (flow == null) {
+                Integer weight = weights.get(caller);
+                flow = new Flow(caller, weight == null || weight <= 0 ? 1 : weight);
+                flows.put(caller, flow);
+            }
+            //新来的调用方从当前虚拟时间开始，有积压的调用方接在自己上一个请求之后
+            long start = Math.max(virtualTime, flow.finish);
+            flow.finish = start + COST / flow.weight;
+            flow.queued++;
+            fair.add(new Entry(task, flow, start, sequence++));
+        }
+        count++;
+        notEmpty.signal();
+    }
+
+    //加锁后调用
+    private Runnable dequeue() {
+        Runnable task = interactive.poll();
+        if (task == null) {
+            Entry entry = fair.poll();
+            if (entry == null) {
+                return null;
+            }
+            virtualTime = entry.start;
+            release(entry.flow);
+            task = entry.task;
+        }
+        count--;
+        notFull.signal();
+        return task;
+    }
+
+    private void release(Flow flow) {
+        if (--flow.queued == 0) {
+            flows.remove(flow.caller);
+        }
+    }
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            Runnable task = interactive.peek();
+            if (task == null) {
+                Entry entry = fair.peek();
+                task = entry == null ? null : entry.task;
+            }
+            return task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //线程池关闭时调用，O(n)
+    @Override
+    public boolean remove(Object o) {
+        lock.lock();
+        try {
+            boolean removed = interactive.remove(o);
+            if (!removed) {
+                for (Iterator<Entry> it = fair.iterator(); it.hasNext(); ) {
+                    Entry entry = it.next();
+                    if (entry.task == o) {
+                        it.remove();
+                        release(entry.flow);
+                        removed = true;
+                        break;
+                    }
+                }
+            }
+            if (removed) {
+                count--;
+                notFull.signal();
+            }
+            return removed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return capacity - count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        lock.lock();
+        try {
+            int drained = 0;
+            Runnable task;
+            while (drained < maxElements && (task = dequeue()) != null) {
+                c.add(task);
+                drained++;
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //快照，不支持通过迭代器删除
+    @Override
+    public Iterator<Runnable> iterator() {
+        lock.lock();
+        try {
+            List<Runnable> snapshot = new ArrayList<Runnable>(interactive);
+            for (Entry entry : fair) {
+                snapshot.add(entry.task);
+            }
+            return Collections.unmodifiableList(snapshot).iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //一个调用方的排队状态
+    private static final class Flow {
+        final String caller;
+        final int weight;
+        //最后一个排队请求的结束标签
+        long finish;
+        int queued;
+
+        Flow(String caller, int weight) {
+            this.caller = caller;
+            this.weight = weight;
+        }
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+        final Runnable task;
+        final Flow flow;
+        final long start;
+        //开始标签相同时按到达顺序
+        final long sequence;
+
+        Entry(Runnable task, Flow flow, long start, long sequence) {
+            this.task = task;
+            this.flow = flow;
+            this.start = start;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            if (start != o.start) {
+                return start < o.start ? -1 : 1;
+            }
+            return sequence < o.sequence ? -1 : sequence == o.sequence ? 0 : 1;
+        }
+    }
+}
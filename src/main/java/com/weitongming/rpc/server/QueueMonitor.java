@@ -0,0 +1,71 @@
+package com.weitongming.rpc.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按排队时间判断线程池是否过载（CoDel）：一个统计周期内的最小排队时间仍超过目标值，说明队列一直没有排空，
+ * 是持续积压而不是瞬时突发，下一个周期内有任务排队时拒绝新请求，并且出队时丢弃排队超过目标值的任务；
+ * 周期内最小排队时间回到目标值以下即恢复，不过载时不拒绝也不丢弃，正常的突发排队不受影响
+ * @author tim.wei
+ */
+class QueueMonitor {
+    private final long targetNanos;
+    private final long intervalNanos;
+    //已提交还没有开始执行的任务数
+    private final AtomicInteger queued = new AtomicInteger();
+    //本周期内的最小排队时间
+    private final AtomicLong minDelay = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong intervalEnd;
+    private volatile boolean overloaded;
+
+    QueueMonitor(long targetNanos, long intervalNanos) {
+        this(targetNanos, intervalNanos, System.nanoTime());
+    }
+
+    //startNanos为第一次结算的时刻，测试中传入模拟时钟
+    QueueMonitor(long targetNanos, long intervalNanos, long startNanos) {
+        this.targetNanos = targetNanos;
+        this.intervalNanos = intervalNanos;
+        this.intervalEnd = new AtomicLong(startNanos);
+    }
+
+    void enqueued() {
+        queued.incrementAndGet();
+    }
+
+    //提交失败，任务没有进入队列
+    void cancelled() {
+        queued.decrementAndGet();
+    }
+
+    void dequeued(long sojournNanos) {
+        dequeued(sojournNanos, System.nanoTime());
+    }
+
+    void dequeued(long sojournNanos, long now) {
+        queued.decrementAndGet();
+        long min;
+        while (sojournNanos < (min = minDelay.get()) && !minDelay.compareAndSet(min, sojournNanos)) {
+        }
+        long end = intervalEnd.get();
+        //周期结束，由一个线程结算
+        if (now - end >= 0 && intervalEnd.compareAndSet(end, now + intervalNanos)) {
+            overloaded = minDelay.getAndSet(Long.MAX_VALUE) > targetNanos;
+        }
+    }
+
+    //出队时判断是否已经排得太久：只在过载时丢弃排队超过目标值的任务
+    boolean isTooLate(long sojournNanos) {
+        return overloaded && sojournNanos > targetNanos;
+    }
+
+    //过载且还有任务在排队时拒绝，有空闲线程时仍然接收，避免队列排空后一直拒绝
+    boolean shouldShed() {
+        return overloaded && queued.get() > 0;
+    }
+
+    boolean isOverloaded() {
+        return overloaded;
+    }
+}
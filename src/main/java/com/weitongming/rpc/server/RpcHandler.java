@@ -1,17 +1,25 @@
 package com.weitongming.rpc.server;
 
+import com.weitongming.rpc.protocol.Deadline;
 import com.weitongming.rpc.protocol.RpcRequest;
 import com.weitongming.rpc.protocol.RpcResponse;
+import com.weitongming.rpc.protocol.WriteBatcher;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
-import net.sf.cglib.reflect.FastClass;
-import net.sf.cglib.reflect.FastMethod;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Map;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * RPC Handler（RPC request processor）
@@ -20,76 +28,325 @@ import java.util.Map;
 public class RpcHandler extends SimpleChannelInboundHandler<RpcRequest> {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(RpcHandler.class);
+    //方法id上限，防止对端发送过大的id撑大字典
+    private static final int MAX_METHOD_ID = 65536;
 
-    private final Map<String, Object> handlerMap;
+    private final DispatchTable dispatchTable;
+    //连接内方法字典：下标为对端分配的方法id，只在IO线程中读写
+    private ServiceMethod[] methodDictionary = new ServiceMethod[16];
+    //合并写配置，writeBatchSize为0表示不合并，每个响应单独flush
+    private final int writeBatchSize;
+    private final long writeBatchDelayMicros;
+    private WriteBatcher writeBatcher;
+    //请求没有携带调用方标识时，以连接对端的主机地址作为调用方
+    private String defaultCaller;
 
-    public RpcHandler(Map<String, Object> handlerMap) {
-        this.handlerMap = handlerMap;
+    public RpcHandler(DispatchTable dispatchTable) {
+        this(dispatchTable, 0, 0);
+    }
+
+    public RpcHandler(DispatchTable dispatchTable, int writeBatchSize, long writeBatchDelayMicros) {
+        this.dispatchTable = dispatchTable;
+        this.writeBatchSize = writeBatchSize;
+        this.writeBatchDelayMicros = writeBatchDelayMicros;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        super.handlerAdded(ctx);
+        SocketAddress remote = ctx.channel().remoteAddress();
+        defaultCaller = remote instanceof InetSocketAddress
+                ? ((InetSocketAddress) remote).getAddress().getHostAddress() : String.valueOf(remote);
+        if (writeBatchSize > 0) {
+            writeBatcher = new WriteBatcher(ctx.channel(), writeBatchSize, writeBatchDelayMicros);
+        }
+    }
+
+    //读完一批请求，在IO线程内已经完成的响应立即写出
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        if (writeBatcher != null) {
+            writeBatcher.flush();
+        }
+        super.channelReadComplete(ctx);
+    }
+
+    //积压的响应写往已关闭的连接，立即失败而不是等待延迟
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (writeBatcher != null) {
+            writeBatcher.flush();
+        }
+        super.channelInactive(ctx);
     }
 
     @Override
     public void channelRead0(final ChannelHandlerContext ctx,final RpcRequest request) throws Exception {
-        //调用RpcServer的静态方法
-        RpcServer.submit(new Runnable() {
+        if (request.getBatch() != null) {
+            channelReadBatch(ctx, request);
+            return;
+        }
+        stampDeadline(request);
+        stampCaller(request);
+        //在IO线程中查表，精简头部的请求只需按方法id取下标
+        final ServiceMethod serviceMethod = resolveMethod(request);
+        //交给该方法配置的执行器，找不到方法时直接在IO线程返回错误
+        Runnable task = new Runnable() {
             public void run() {
-                LOGGER.debug("接收到请求：" + request.getRequestId());
-                RpcResponse response = new RpcResponse();
-                response.setRequestId(request.getRequestId());
-
-                try {
-                    //调用handle方法处理请求
-                    Object result = handle(request);
-                    //存入请求结果
-                    response.setResult(result);
-                } catch (Throwable t) {
-                    response.setError(t.toString());
-                    LOGGER.error("RPC Server 处理请求出错",t);
+                final boolean debug = LOGGER.isDebugEnabled();
+                if (debug) {
+                    LOGGER.debug("接收到请求：" + request.getId());
+                }
+                RpcResponse response = execute(request, serviceMethod);
+                if (request.isOneWay()) {
+                    //单向调用不返回响应，失败已记入服务统计，找不到方法的记入分发表
+                    if (serviceMethod == null) {
+                        dispatchTable.recordUnresolvedOneWay();
+                        LOGGER.warn("单向调用找不到方法：" + response.getError());
+                    }
+                    return;
                 }
+                //沿用请求的序列化方式
+                response.setSerializer(request.getSerializer());
                 //发送处理结果
-                ctx.writeAndFlush(response).addListener(new ChannelFutureListener() {
-                    public void operationComplete(ChannelFuture channelFuture) throws Exception {
-                        LOGGER.debug("发送处理结果： " + request.getRequestId());
+                ChannelFuture future = write(ctx, response);
+                if (debug) {
+                    future.addListener(new ChannelFutureListener() {
+                        public void operationComplete(ChannelFuture channelFuture) throws Exception {
+                            LOGGER.debug("发送处理结果： " + request.getId());
+                        }
+                    });
+                }
+            }
+        };
+        if (serviceMethod == null) {
+            task.run();
+            return;
+        }
+        serviceMethod.getExecutor().execute(request, task, new Runnable() {
+            public void run() {
+                //单向调用被拒绝时丢弃，拒绝次数已记入服务统计
+                if (request.isOneWay()) {
+                    return;
+                }
+                RpcResponse response = rejected(request, serviceMethod);
+                response.setSerializer(request.getSerializer());
+                write(ctx, response);
+            }
+        }, serviceMethod.getStats());
+    }
+
+    //批量请求：在IO线程中按顺序解析各元素的方法，串行时整批在一个任务中执行并一次返回，
+    //并行时每个元素一个任务，先完成的结果先汇总写出
+    private void channelReadBatch(final ChannelHandlerContext ctx, final RpcRequest envelope) {
+        final List<RpcRequest> elements = envelope.getBatch();
+        final ServiceMethod[] serviceMethods = new ServiceMethod[elements.size()];
+        for (int i = 0; i < serviceMethods.length; i++) {
+            //元素沿用信封的序列化方式
+            elements.get(i).setSerializer(envelope.getSerializer());
+            stampDeadline(elements.get(i));
+            stampCaller(elements.get(i));
+            serviceMethods[i] = resolveMethod(elements.get(i));
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("接收到批量请求：" + elements.size() + (envelope.isParallel() ? " 并行" : " 串行"));
+        }
+        if (!envelope.isParallel()) {
+            //串行批次交给第一个可解析方法的执行器，被拒绝时每个元素都返回错误
+            ServiceMethod first = null;
+            for (ServiceMethod serviceMethod : serviceMethods) {
+                if (serviceMethod != null) {
+                    first = serviceMethod;
+                    break;
+                }
+            }
+            Runnable task = new Runnable() {
+                public void run() {
+                    List<RpcResponse> responses = new ArrayList<>(serviceMethods.length);
+                    for (int i = 0; i < serviceMethods.length; i++) {
+                        responses.add(execute(elements.get(i), serviceMethods[i]));
                     }
-                });
+                    write(ctx, batchResponse(envelope, serviceMethods, responses));
+                }
+            };
+            if (first == null) {
+                task.run();
+                return;
             }
-        });
-    }
-    //处理请求 反射
-    private Object handle(RpcRequest request) throws Throwable {
-        //取出类名并根据类名获取bean（bean已用注解将类名绑定）
-        String className = request.getClassName();
-        Object serviceBean = handlerMap.get(className);
-
-        Class<?> serviceClass = serviceBean.getClass();
-        String methodName = request.getMethodName();
-        Class<?>[] parameterTypes = request.getParameterTypes();
-        Object[] parameters = request.getParameters();
-
-        LOGGER.debug("获取到的类名" + serviceClass.getName());
-        LOGGER.debug("获取到的方法名" + methodName);
-        //修复空指针bug
-        if (parameters != null){
-            for (int i = 0; i < parameterTypes.length; ++i) {
-                LOGGER.debug(parameterTypes[i].getName());
+            final ServiceMethod rejectedBy = first;
+            first.getExecutor().execute(elements.get(0), task, new Runnable() {
+                public void run() {
+                    List<RpcResponse> responses = new ArrayList<>(serviceMethods.length);
+                    for (RpcRequest element : elements) {
+                        responses.add(rejected(element, rejectedBy));
+                    }
+                    write(ctx, batchResponse(envelope, serviceMethods, responses));
+                }
+            }, first.getStats());
+            return;
+        }
+        final BatchCollector collector = new BatchCollector(ctx, envelope, serviceMethods);
+        for (int i = 0; i < serviceMethods.length; i++) {
+            final RpcRequest element = elements.get(i);
+            final ServiceMethod serviceMethod = serviceMethods[i];
+            Runnable task = new Runnable() {
+                public void run() {
+                    collector.add(execute(element, serviceMethod));
+                }
+            };
+            if (serviceMethod == null) {
+                task.run();
+                continue;
             }
-            for (int i = 0; i < parameters.length; ++i) {
-                LOGGER.debug(parameters[i].toString());
+            serviceMethod.getExecutor().execute(element, task, new Runnable() {
+                public void run() {
+                    collector.add(rejected(element, serviceMethod));
+                }
+            }, serviceMethod.getStats());
+        }
+    }
+
+    //调用方法并封装结果，已过截止时间的不再执行，异常记入响应的error
+    private RpcResponse execute(RpcRequest request, ServiceMethod serviceMethod) {
+        RpcResponse response = newResponse(request);
+        long deadline = request.getDeadlineNanos();
+        if (serviceMethod == null) {
+            response.setError("Method not found: " + request.getMethodId() + " " + request.getClassName()
+                    + "#" + request.getMethodName() + Arrays.toString(request.getParameterTypes()));
+        } else if (!serviceMethod.accepts(request.getSerializer())) {
+            //服务没有开启该序列化方式
+            serviceMethod.getStats().recordFailed();
+            response.setError("Serializer " + request.getSerializer() + " is not enabled for " + serviceMethod.getSignature().getClassName());
+        } else if (deadline != 0 && deadline - System.nanoTime() <= 0) {
+            //排队期间客户端已经超时，不再执行
+            serviceMethod.getStats().recordExpired();
+            response.setError("Deadline exceeded: budget " + request.getBudgetMillis() + "ms used up before execution");
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("丢弃已超时的请求：" + request.getId());
+            }
+        } else {
+            response.setCompressThreshold(serviceMethod.getCompressThreshold());
+            //服务方法内的嵌套调用继承剩余时间
+            Long previous = deadline != 0 ? Deadline.set(deadline) : null;
+            try {
+                //调用方法处理请求并存入请求结果
+                response.setResult(serviceMethod.invoke(serviceMethod.bindParameters(request.getParameters(), request.getSerializer())));
+            } catch (Throwable t) {
+                serviceMethod.getStats().recordFailed();
+                response.setError(t.toString());
+                LOGGER.error("RPC Server 处理请求出错",t);
+            } finally {
+                if (deadline != 0) {
+                    Deadline.set(previous);
+                }
+            }
+        }
+        return response;
+    }
+
+    private void stampCaller(RpcRequest request) {
+        if (request.getCaller() == null) {
+            request.setCaller(defaultCaller);
+        }
+    }
+
+    //以收到请求的时间为起点，把请求携带的剩余时间换算为本机的截止时间
+    private static void stampDeadline(RpcRequest request) {
+        long budgetMillis = request.getBudgetMillis();
+        if (budgetMillis > 0) {
+            request.setDeadlineNanos(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis));
+        }
+    }
+
+    //执行器过载或达到上限拒绝执行，立即返回过载响应，请求没有执行，客户端可以换一个节点重试
+    private static RpcResponse rejected(RpcRequest request, ServiceMethod serviceMethod) {
+        RpcResponse response = newResponse(request);
+        response.setOverloaded(true);
+        response.setError("Server overloaded: rejected by executor " + serviceMethod.getExecutor().getName());
+        return response;
+    }
+
+    private static RpcResponse newResponse(RpcRequest request) {
+        RpcResponse response = new RpcResponse();
+        //新版本请求只回传数字id，旧版本请求回传字符串id
+        if (request.getId() != 0) {
+            response.setId(request.getId());
+        } else {
+            response.setRequestId(request.getRequestId());
+        }
+        return response;
+    }
+
+    //批量响应信封沿用请求信封的序列化方式，压缩阈值取批次中第一个可解析的方法
+    private static RpcResponse batchResponse(RpcRequest envelope, ServiceMethod[] serviceMethods, List<RpcResponse> responses) {
+        RpcResponse response = new RpcResponse();
+        response.setSerializer(envelope.getSerializer());
+        for (ServiceMethod serviceMethod : serviceMethods) {
+            if (serviceMethod != null) {
+                response.setCompressThreshold(serviceMethod.getCompressThreshold());
+                break;
             }
         }
+        response.setBatch(responses);
+        return response;
+    }
 
+    private ChannelFuture write(ChannelHandlerContext ctx, RpcResponse response) {
+        return writeBatcher != null ? writeBatcher.write(response) : ctx.writeAndFlush(response);
+    }
 
-        // JDK reflect
-        /*Method method = serviceClass.getMethod(methodName, parameterTypes);
-        method.setAccessible(true);
-        return method.invoke(serviceBean, parameters);*/
+    //解析请求对应的服务方法：携带完整签名时查表并登记到连接内字典，只携带方法id时直接取字典
+    private ServiceMethod resolveMethod(RpcRequest request) {
+        int methodId = request.getMethodId();
+        if (methodId > 0 && methodId < MAX_METHOD_ID && request.getClassName() == null) {
+            return methodId < methodDictionary.length ? methodDictionary[methodId] : null;
+        }
+        ServiceMethod serviceMethod = dispatchTable.find(request.getClassName(), request.getMethodName(), request.getParameterTypes());
+        if (methodId > 0 && methodId < MAX_METHOD_ID) {
+            if (methodId >= methodDictionary.length) {
+                methodDictionary = Arrays.copyOf(methodDictionary, Math.max(methodId + 1, methodDictionary.length * 2));
+            }
+            methodDictionary[methodId] = serviceMethod;
+        }
+        return serviceMethod;
+    }
 
-        // Cglib reflect
-        FastClass serviceFastClass = FastClass.create(serviceClass);
-        FastMethod serviceFastMethod = serviceFastClass.getMethod(methodName, parameterTypes);
-        // TODO: 2017/4/10 未加入类似线程池
+    //并行批次的结果汇总：工作线程完成后放入队列，由IO线程取出当时已完成的全部结果合成一个响应帧写出，
+    //同时完成的元素共用一帧，慢的元素稍后单独返回
+    private final class BatchCollector implements Runnable {
+        private final ChannelHandlerContext ctx;
+        private final RpcRequest envelope;
+        private final ServiceMethod[] serviceMethods;
+        private final Queue<RpcResponse> completed = new ConcurrentLinkedQueue<>();
+        //是否已提交写出任务
+        private final AtomicBoolean scheduled = new AtomicBoolean();
 
-        //方法.Invoke （实例化的bean，参数）
-        return serviceFastMethod.invoke(serviceBean, parameters);
+        BatchCollector(ChannelHandlerContext ctx, RpcRequest envelope, ServiceMethod[] serviceMethods) {
+            this.ctx = ctx;
+            this.envelope = envelope;
+            this.serviceMethods = serviceMethods;
+        }
+
+        void add(RpcResponse response) {
+            completed.add(response);
+            if (scheduled.compareAndSet(false, true)) {
+                ctx.channel().eventLoop().execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            //先复位再取，取出之后新加入的结果会提交下一次写出
+            scheduled.set(false);
+            List<RpcResponse> responses = new ArrayList<>();
+            RpcResponse response;
+            while ((response = completed.poll()) != null) {
+                responses.add(response);
+            }
+            if (!responses.isEmpty()) {
+                write(ctx, batchResponse(envelope, serviceMethods, responses));
+            }
+        }
     }
 
     @Override
@@ -1,5 +1,7 @@
 package com.weitongming.rpc.server;
 
+import com.weitongming.rpc.protocol.ChunkedFrameWriter;
+import com.weitongming.rpc.protocol.NettyTransport;
 import com.weitongming.rpc.protocol.RpcDecoder;
 import com.weitongming.rpc.protocol.RpcEncoder;
 import com.weitongming.rpc.protocol.RpcRequest;
@@ -10,10 +12,8 @@ import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.epoll.EpollChannelOption;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 import org.apache.commons.collections4.MapUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,7 +24,7 @@ import org.springframework.context.ApplicationContextAware;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -41,8 +41,27 @@ public class RpcServer implements ApplicationContextAware, InitializingBean {
     private ServiceRegistry serviceRegistry;
     //实现类map
     private Map<String, Object> handlerMap = new HashMap<String, Object>();
+    //分发表，启动时构建
+    private DispatchTable dispatchTable;
     //线程池
-    private static ThreadPoolExecutor threadPoolExecutor;
+    private static volatile ThreadPoolExecutor threadPoolExecutor;
+    //共享线程池的线程数
+    private static volatile int sharedThreads = 16;
+    //共享线程池的排队上限，只在线程池创建前生效
+    private static volatile int sharedQueueCapacity = 65536;
+    //合并写：积压多少个响应立即flush，0表示不合并
+    private int writeBatchSize;
+    //合并写：最长等待微秒数，0表示下一次事件循环即flush
+    private long writeBatchDelayMicros;
+    //使用原生epoll传输，不可用时回退到NIO
+    private boolean nativeTransport;
+    //boss线程数，开启reusePort时每个boss线程各绑定一次端口，由内核分发新连接
+    private int bossThreads = 1;
+    //worker线程数，0表示netty默认值
+    private int workerThreads;
+    //SO_REUSEPORT，仅epoll支持
+    private boolean reusePort;
+    private boolean tcpNoDelay = true;
     //构造函数
     public RpcServer(String serverAddress) {
         this.serverAddress = serverAddress;
@@ -65,33 +84,50 @@ public class RpcServer implements ApplicationContextAware, InitializingBean {
                 handlerMap.put(interfaceName, serviceBean);
             }
         }
+        //预先解析所有服务方法，请求处理时只需查表
+        dispatchTable = new DispatchTable(handlerMap);
     }
 
     //spring自动调用InitializingBean 属性配置好之后自动调用 启动netty
     public void afterPropertiesSet() throws Exception {
-        EventLoopGroup bossGroup = new NioEventLoopGroup();
-        EventLoopGroup workerGroup = new NioEventLoopGroup();
+        boolean epoll = NettyTransport.useEpoll(nativeTransport);
+        EventLoopGroup bossGroup = NettyTransport.newEventLoopGroup(epoll, bossThreads);
+        EventLoopGroup workerGroup = NettyTransport.newEventLoopGroup(epoll, workerThreads);
         try {
             ServerBootstrap bootstrap = new ServerBootstrap();
-            bootstrap.group(bossGroup, workerGroup).channel(NioServerSocketChannel.class)
+            bootstrap.group(bossGroup, workerGroup).channel(NettyTransport.serverChannelClass(epoll))
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         public void initChannel(SocketChannel channel) throws Exception {
                             channel.pipeline()
-                                    .addLast(new LengthFieldBasedFrameDecoder(65536,0,4,0,0))
+                                    .addLast(new ChunkedFrameWriter())
                                     .addLast(new RpcDecoder(RpcRequest.class))
                                     .addLast(new RpcEncoder(RpcResponse.class))
-                                    .addLast(new RpcHandler(handlerMap));
+                                    .addLast(new RpcHandler(dispatchTable, writeBatchSize, writeBatchDelayMicros));
                         }
                     })
                     .option(ChannelOption.SO_BACKLOG, 128)
-                    .childOption(ChannelOption.SO_KEEPALIVE, true);
+                    .childOption(ChannelOption.SO_KEEPALIVE, true)
+                    .childOption(ChannelOption.TCP_NODELAY, tcpNoDelay);
+            //多个监听socket绑定同一端口，每个boss线程各自accept
+            int binds = 1;
+            if (reusePort) {
+                if (epoll) {
+                    bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+                    binds = bossThreads;
+                } else {
+                    LOGGER.warn("SO_REUSEPORT需要原生epoll传输，已忽略");
+                }
+            }
 
             String[] array = serverAddress.split(":");
             String host = array[0];
             int port = Integer.parseInt(array[1]);
 
             ChannelFuture future = bootstrap.bind(host, port).sync();
+            for (int i = 1; i < binds; i++) {
+                bootstrap.bind(host, port).sync();
+            }
             LOGGER.debug("服务已启动，端口", port);
 
             if (serviceRegistry != null) {
@@ -100,19 +136,105 @@ public class RpcServer implements ApplicationContextAware, InitializingBean {
 
             future.channel().closeFuture().sync();
         } finally {
+            dispatchTable.shutdown();
             workerGroup.shutdownGracefully();
             bossGroup.shutdownGracefully();
         }
     }
 
+    public void setWriteBatchSize(int writeBatchSize) {
+        this.writeBatchSize = writeBatchSize;
+    }
+
+    public void setWriteBatchDelayMicros(long writeBatchDelayMicros) {
+        this.writeBatchDelayMicros = writeBatchDelayMicros;
+    }
+
+    public void setNativeTransport(boolean nativeTransport) {
+        this.nativeTransport = nativeTransport;
+    }
+
+    public void setBossThreads(int bossThreads) {
+        this.bossThreads = bossThreads;
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    public void setReusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+    }
+
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    //共享线程池的线程数，线程池已创建时直接调整
+    public void setSharedThreads(int sharedThreads) {
+        if (sharedThreads <= 0) {
+            throw new IllegalArgumentException("sharedThreads must be positive: " + sharedThreads);
+        }
+        synchronized (RpcServer.class) {
+            RpcServer.sharedThreads = sharedThreads;
+            ThreadPoolExecutor executor = threadPoolExecutor;
+            if (executor != null) {
+                //先扩大上限或先缩小核心数，任何时刻核心数都不超过上限
+                if (sharedThreads > executor.getMaximumPoolSize()) {
+                    executor.setMaximumPoolSize(sharedThreads);
+                    executor.setCorePoolSize(sharedThreads);
+                } else {
+                    executor.setCorePoolSize(sharedThreads);
+                    executor.setMaximumPoolSize(sharedThreads);
+                }
+            }
+        }
+    }
+
+    //共享线程池的排队上限，线程池在构建分发表时创建，之后设置不再生效
+    public void setSharedQueueCapacity(int sharedQueueCapacity) {
+        if (sharedQueueCapacity <= 0) {
+            throw new IllegalArgumentException("sharedQueueCapacity must be positive: " + sharedQueueCapacity);
+        }
+        synchronized (RpcServer.class) {
+            if (threadPoolExecutor != null) {
+                LOGGER.warn("共享线程池已创建，排队上限设置被忽略: {}", sharedQueueCapacity);
+                return;
+            }
+            RpcServer.sharedQueueCapacity = sharedQueueCapacity;
+        }
+    }
+
+    //调用方 -> 公平排队的权重，未配置的调用方权重为1，对所有线程池生效
+    public void setCallerWeights(Map<String, Integer> callerWeights) {
+        FairQueue.setWeights(callerWeights);
+    }
+
+    //各服务的过载拒绝次数和排队时间直方图，接口名 -> 统计
+    public Map<String, ServiceStats> getServiceStats() {
+        return dispatchTable.getServiceStats();
+    }
+
+    //找不到方法而丢弃的单向调用次数
+    public long getUnresolvedOneWayCount() {
+        return dispatchTable.getUnresolvedOneWayCount();
+    }
+
     public static void submit(Runnable task){
+        executor().submit(task);
+    }
+
+    //共享线程池，未配置@Execution的服务方法在其中执行
+    public static ExecutorService executor() {
         if(threadPoolExecutor == null){
             synchronized (RpcServer.class) {
                 if(threadPoolExecutor == null){
-                    threadPoolExecutor = new ThreadPoolExecutor(16, 16, 600L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(65536));
+                    //交互类请求优先，其余按调用方公平排队
+                    threadPoolExecutor = new ThreadPoolExecutor(sharedThreads, sharedThreads, 600L, TimeUnit.SECONDS,
+                            new FairQueue(sharedQueueCapacity));
                 }
             }
         }
-        threadPoolExecutor.submit(task);
+        return threadPoolExecutor;
     }
 }
@@ -1,5 +1,6 @@
 package com.weitongming.rpc.server;
 
+import com.weitongming.rpc.protocol.Serializer;
 import org.springframework.stereotype.Component;
 
 import java.lang.annotation.ElementType;
@@ -17,4 +18,7 @@ import java.lang.annotation.Target;
 @Component
 public @interface RpcService {
     Class<?> value();
+
+    //该服务接受的序列化方式，见Serializer中的id；使用其他序列化方式的请求返回错误，旧格式请求按protostuff处理
+    byte[] serializers() default {Serializer.PROTOSTUFF};
 }
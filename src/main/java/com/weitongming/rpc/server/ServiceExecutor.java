@@ -0,0 +1,202 @@
+package com.weitongming.rpc.server;
+
+import com.weitongming.rpc.protocol.RpcRequest;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 服务方法的执行器，由@Execution配置创建：IO线程内执行、共享线程池、独立线程池或虚拟线程
+ * @author tim.wei
+ */
+public class ServiceExecutor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ServiceExecutor.class);
+
+    //未标注@Execution的方法使用，不按排队时间拒绝
+    static final ServiceExecutor SHARED = new ServiceExecutor("shared", RpcServer.executor(), null, Execution.Rejection.ERROR, null);
+    static final ServiceExecutor INLINE = new ServiceExecutor("inline", null, null, Execution.Rejection.ERROR, null);
+
+    private final String name;
+    //为null表示在IO线程内执行
+    private final Executor executor;
+    //虚拟线程模式下同时执行的任务数上限，其他模式为null
+    private final Semaphore permits;
+    private final Execution.Rejection rejection;
+    //按排队时间判断过载，在IO线程执行或不按排队时间拒绝时为null
+    private final QueueMonitor monitor;
+
+    private ServiceExecutor(String name, Executor executor, Semaphore permits, Execution.Rejection rejection, QueueMonitor monitor) {
+        this.name = name;
+        this.executor = executor;
+        this.permits = permits;
+        this.rejection = rejection;
+        this.monitor = monitor;
+    }
+
+    static ServiceExecutor create(String name, Execution execution) {
+        switch (execution.value()) {
+            case INLINE:
+                return INLINE;
+            case BULKHEAD:
+                return bulkhead(name, execution);
+            case VIRTUAL:
+                ExecutorService virtual = newVirtualThreadExecutor();
+                if (virtual == null) {
+                    LOGGER.warn("当前JVM不支持虚拟线程，{}改用独立线程池", name);
+                    return bulkhead(name, execution);
+                }
+                //虚拟线程不排队，只按并发数拒绝
+                return new ServiceExecutor(name, virtual, new Semaphore(Math.max(1, execution.queueSize())), execution.rejection(), null);
+            default:
+                //共享线程池，按该服务自己任务的排队时间判断过载
+                return new ServiceExecutor(name, RpcServer.executor(), null, execution.rejection(), monitor(execution));
+        }
+    }
+
+    private static QueueMonitor monitor(Execution execution) {
+        return execution.queueTargetMillis() <= 0 ? null : new QueueMonitor(
+                TimeUnit.MILLISECONDS.toNanos(execution.queueTargetMillis()), TimeUnit.MILLISECONDS.toNanos(execution.queueIntervalMillis()));
+    }
+
+    private static ServiceExecutor bulkhead(String name, Execution execution) {
+        BlockingQueue<Runnable> queue = execution.queueSize() > 0
+                ? new FairQueue(execution.queueSize()) : new SynchronousQueue<Runnable>();
+        int threads = Math.max(1, execution.threads());
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, queue,
+                new DefaultThreadFactory("rpc-" + name, true));
+        return new ServiceExecutor(name, pool, null, execution.rejection(), monitor(execution));
+    }
+
+    //JDK 21的Executors.newVirtualThreadPerTaskExecutor，源码按1.8编译，通过反射调用
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isInline() {
+        return executor == null;
+    }
+
+    /**
+     * 执行request对应的任务；排队时间持续超标、达到上限或出队时已经排得太久，按配置在当前线程执行，
+     * 或者执行rejected返回过载响应；线程池按request的调用方和优先级排队，拒绝次数和排队时间记入stats
+     */
+    public void execute(RpcRequest request, Runnable task, Runnable rejected, ServiceStats stats) {
+        if (executor == null) {
+            task.run();
+            return;
+        }
+        if (monitor != null && monitor.shouldShed()) {
+            stats.recordShed();
+            reject(task, rejected);
+            return;
+        }
+        if (permits != null && !permits.tryAcquire()) {
+            stats.recordRejected();
+            reject(task, rejected);
+            return;
+        }
+        if (monitor != null) {
+            monitor.enqueued();
+        }
+        try {
+            executor.execute(new Command(request, task, rejected, stats));
+        } catch (RejectedExecutionException e) {
+            if (monitor != null) {
+                monitor.cancelled();
+            }
+            if (permits != null) {
+                permits.release();
+            }
+            stats.recordRejected();
+            reject(task, rejected);
+        }
+    }
+
+    private void reject(Runnable task, Runnable rejected) {
+        if (rejection == Execution.Rejection.CALLER_RUNS) {
+            task.run();
+        } else {
+            rejected.run();
+        }
+    }
+
+    //是否处于按排队时间判断的过载状态
+    public boolean isOverloaded() {
+        return monitor != null && monitor.isOverloaded();
+    }
+
+    //提交给线程池的任务：出队时记录排队时间并判断是否已经排得太久，携带调用方和优先级供FairQueue排队
+    private final class Command implements Runnable, FairQueue.Tagged {
+        private final RpcRequest request;
+        private final Runnable task;
+        private final Runnable rejected;
+        private final ServiceStats stats;
+        private final long enqueued = System.nanoTime();
+
+        Command(RpcRequest request, Runnable task, Runnable rejected, ServiceStats stats) {
+            this.request = request;
+            this.task = task;
+            this.rejected = rejected;
+            this.stats = stats;
+        }
+
+        @Override
+        public String getCaller() {
+            return request.getCaller();
+        }
+
+        @Override
+        public boolean isInteractive() {
+            return request.getPriority() == RpcRequest.PRIORITY_INTERACTIVE;
+        }
+
+        @Override
+        public void run() {
+            long sojourn = System.nanoTime() - enqueued;
+            stats.recordQueueDelay(sojourn);
+            try {
+                if (monitor != null) {
+                    monitor.dequeued(sojourn);
+                    if (rejection == Execution.Rejection.ERROR && monitor.isTooLate(sojourn)) {
+                        stats.recordShed();
+                        rejected.run();
+                        return;
+                    }
+                }
+                task.run();
+            } finally {
+                if (permits != null) {
+                    permits.release();
+                }
+            }
+        }
+    }
+
+    //关闭独立线程池和虚拟线程执行器，共享线程池由RpcServer管理
+    void shutdown() {
+        if (executor instanceof ExecutorService && executor != RpcServer.executor()) {
+            ((ExecutorService) executor).shutdown();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.weitongming.rpc.server;
+
+import com.weitongming.rpc.protocol.MethodSignature;
+import com.weitongming.rpc.protocol.RpcProtocol;
+import com.weitongming.rpc.protocol.Serializer;
+import com.weitongming.rpc.protocol.SerializerFactory;
+import net.sf.cglib.reflect.FastMethod;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Type;
+
+/**
+ * 分发表中的一个服务方法，启动时解析好调用所需的全部信息
+ * @author tim.wei
+ */
+public class ServiceMethod {
+    //分发表中的下标
+    private final int id;
+    private final MethodSignature signature;
+    //服务实现bean
+    private final Object serviceBean;
+    //cglib生成的直接调用类，不走反射
+    private final FastMethod fastMethod;
+    //响应压缩阈值
+    private final int compressThreshold;
+    //声明的参数类型（含泛型参数），用于绑定参数
+    private final Type[] parameterTypes;
+    //接受的序列化方式
+    private final byte[] serializers;
+    //执行该方法的执行器
+    private final ServiceExecutor executor;
+    //所属服务的统计
+    private final ServiceStats stats;
+
+    public ServiceMethod(int id, MethodSignature signature, Object serviceBean, FastMethod fastMethod, int compressThreshold,
+                         Type[] parameterTypes, byte[] serializers, ServiceExecutor executor, ServiceStats stats) {
+        this.id = id;
+        this.signature = signature;
+        this.serviceBean = serviceBean;
+        this.fastMethod = fastMethod;
+        this.compressThreshold = compressThreshold;
+        this.parameterTypes = parameterTypes;
+        this.serializers = serializers;
+        this.executor = executor;
+        this.stats = stats;
+    }
+
+    public Object invoke(Object[] parameters) throws InvocationTargetException {
+        return fastMethod.invoke(serviceBean, parameters);
+    }
+
+    //旧格式请求就是protostuff
+    public boolean accepts(byte serializer) {
+        if (serializer == RpcProtocol.LEGACY) {
+            serializer = Serializer.PROTOSTUFF;
+        }
+        for (byte accepted : serializers) {
+            if (accepted == serializer) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //按声明的参数类型绑定参数，不采用对端写入的类型信息；参数个数不符时抛出IllegalArgumentException
+    public Object[] bindParameters(Object[] parameters, byte serializer) {
+        if (serializer == RpcProtocol.LEGACY || parameters == null) {
+            return parameters;
+        }
+        if (parameters.length != parameterTypes.length) {
+            throw new IllegalArgumentException("Expected " + parameterTypes.length + " parameters but got " + parameters.length);
+        }
+        Serializer codec = SerializerFactory.get(serializer);
+        for (int i = 0; i < parameters.length; i++) {
+            parameters[i] = codec.bind(parameters[i], parameterTypes[i]);
+        }
+        return parameters;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public MethodSignature getSignature() {
+        return signature;
+    }
+
+    public int getCompressThreshold() {
+        return compressThreshold;
+    }
+
+    public ServiceExecutor getExecutor() {
+        return executor;
+    }
+
+    public ServiceStats getStats() {
+        return stats;
+    }
+}
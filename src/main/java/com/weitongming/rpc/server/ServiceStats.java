@@ -0,0 +1,113 @@
+package com.weitongming.rpc.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 服务级统计：过载拒绝次数、队列满拒绝次数、超过截止时间丢弃次数、执行出错次数和排队时间直方图，通过RpcServer.getServiceStats读取
+ * 单向调用没有响应，它的失败只能从这里看到
+ * @author tim.wei
+ */
+public class ServiceStats {
+    //直方图桶数，第0个桶统计小于1微秒，第i个桶统计[2^(i-1), 2^i)微秒，最后一个桶包含更大的值
+    public static final int BUCKETS = 32;
+
+    private final String serviceName;
+    private final AtomicLong shed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLongArray queueDelay = new AtomicLongArray(BUCKETS);
+
+    public ServiceStats(String serviceName) {
+        this.serviceName = serviceName;
+    }
+
+    void recordShed() {
+        shed.incrementAndGet();
+    }
+
+    void recordRejected() {
+        rejected.incrementAndGet();
+    }
+
+    void recordExpired() {
+        expired.incrementAndGet();
+    }
+
+    void recordFailed() {
+        failed.incrementAndGet();
+    }
+
+    void recordQueueDelay(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        int bucket = micros <= 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        queueDelay.incrementAndGet(bucket);
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    //排队时间持续超过目标值而拒绝的请求数
+    public long getShedCount() {
+        return shed.get();
+    }
+
+    //队列满或并发数达到上限而拒绝的请求数
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    //排队期间超过截止时间而丢弃的请求数
+    public long getExpiredCount() {
+        return expired.get();
+    }
+
+    //服务方法抛出异常的次数
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    //排队时间直方图的快照，下标含义见BUCKETS
+    public long[] getQueueDelayHistogram() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = queueDelay.get(i);
+        }
+        return counts;
+    }
+
+    //第bucket个桶的上界（微秒，不含）
+    public static long bucketUpperBoundMicros(int bucket) {
+        return 1L << bucket;
+    }
+
+    //按直方图估算排队时间分位数，返回所在桶的上界（微秒），没有样本返回0
+    public long getQueueDelayPercentileMicros(double percentile) {
+        long[] counts = getQueueDelayHistogram();
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return bucketUpperBoundMicros(i);
+            }
+        }
+        return bucketUpperBoundMicros(BUCKETS - 1);
+    }
+
+    @Override
+    public String toString() {
+        return serviceName + "{shed=" + shed.get() + ", rejected=" + rejected.get() + ", expired=" + expired.get() + ", failed=" + failed.get()
+                + ", queueDelayP50<" + getQueueDelayPercentileMicros(0.5) + "us, p99<" + getQueueDelayPercentileMicros(0.99) + "us}";
+    }
+}
@@ -0,0 +1,122 @@
+package com.weitongming.rpc;
+
+import com.weitongming.rpc.client.AdaptiveLimiter;
+import com.weitongming.rpc.client.ConnectManage;
+import com.weitongming.rpc.client.RpcClient;
+import com.weitongming.rpc.server.RpcServer;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.net.ServerSocket;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 客户端开启节点自适应并发上限，64个线程压一个容量固定的服务节点，一半调用按路由键：
+ * 节点在途数始终不为负、压测结束后归零，并且过载期间后半段的有效吞吐没有崩溃
+ *
+ * @author tim.wei
+ */
+public class OverloadTest {
+    private static final int THREADS = 64;
+    private static final long PHASE_MILLIS = 1500;
+
+    private static AnnotationConfigApplicationContext context;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        int port;
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            port = socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+        context = new AnnotationConfigApplicationContext(SlowServiceImpl.class);
+        final RpcServer server = new RpcServer("127.0.0.1:" + port);
+        server.setApplicationContext(context);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.afterPropertiesSet();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "overload-test-server");
+        thread.setDaemon(true);
+        thread.start();
+        ConnectManage.getInstance().setAdaptiveConcurrency(true);
+        ConnectManage.getInstance().updateConnectedServer(Collections.singletonList("127.0.0.1:" + port));
+    }
+
+    @AfterClass
+    public static void stop() {
+        ConnectManage.getInstance().stop();
+        context.close();
+    }
+
+    @Test
+    public void goodputStaysStableAndPermitsBalance() throws Exception {
+        final SlowService service = RpcClient.create(SlowService.class);
+        //等待连接建立
+        service.plain("warmup");
+        final AdaptiveLimiter limiter = ConnectManage.getInstance().chooseHandler().getNodeLimiter();
+        assertTrue(limiter != null);
+
+        final long start = System.currentTimeMillis();
+        final long end = start + 2 * PHASE_MILLIS;
+        final AtomicLong firstHalf = new AtomicLong();
+        final AtomicLong secondHalf = new AtomicLong();
+        final AtomicInteger minInFlight = new AtomicInteger();
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < threads.length; i++) {
+            final boolean keyed = i % 2 == 0;
+            final String key = "k" + i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long now;
+                    while ((now = System.currentTimeMillis()) < end) {
+                        try {
+                            if (keyed) {
+                                service.keyed(key);
+                            } else {
+                                service.plain(key);
+                            }
+                            (now - start < PHASE_MILLIS ? firstHalf : secondHalf).incrementAndGet();
+                        } catch (RuntimeException e) {
+                            //被限流拒绝或超时，不计入有效吞吐
+                        }
+                        int inFlight = limiter.getInFlight();
+                        if (inFlight < minInFlight.get()) {
+                            minInFlight.set(inFlight);
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue("in-flight went negative: " + minInFlight.get(), minInFlight.get() >= 0);
+        //IO线程先完成future再归还额度，稍等最后几个归还
+        for (int i = 0; i < 100 && limiter.getInFlight() != 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, limiter.getInFlight());
+        //容量约800次/秒，过载下每个阶段至少完成容量的一小部分，后半段不低于前半段的一半
+        long capacity = SlowServiceImpl.CAPACITY * PHASE_MILLIS / SlowServiceImpl.SERVICE_MILLIS;
+        assertTrue("first half goodput " + firstHalf.get(), firstHalf.get() >= capacity / 10);
+        assertTrue("goodput collapsed: " + firstHalf.get() + " -> " + secondHalf.get(), secondHalf.get() >= firstHalf.get() / 2);
+    }
+}
@@ -0,0 +1,16 @@
+package com.weitongming.rpc;
+
+import com.weitongming.rpc.client.RoutingKey;
+import com.weitongming.rpc.client.RpcTimeout;
+
+/**
+ * 过载测试用服务
+ * @author tim.wei
+ */
+@RpcTimeout(1000)
+public interface SlowService {
+    @RoutingKey
+    String keyed(String key);
+
+    String plain(String key);
+}
@@ -0,0 +1,38 @@
+package com.weitongming.rpc;
+
+import com.weitongming.rpc.server.RpcService;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * 容量固定的服务：同时只处理4个请求，每个5ms，其余排队，并发越高响应时间越长
+ * @author tim.wei
+ */
+@RpcService(SlowService.class)
+public class SlowServiceImpl implements SlowService {
+    static final int CAPACITY = 4;
+    static final long SERVICE_MILLIS = 5;
+    private static final Semaphore WORKERS = new Semaphore(CAPACITY, true);
+
+    @Override
+    public String keyed(String key) {
+        return work(key);
+    }
+
+    @Override
+    public String plain(String key) {
+        return work(key);
+    }
+
+    private static String work(String key) {
+        WORKERS.acquireUninterruptibly();
+        try {
+            Thread.sleep(SERVICE_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            WORKERS.release();
+        }
+        return key;
+    }
+}
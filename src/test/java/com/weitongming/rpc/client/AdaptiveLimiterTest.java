@@ -0,0 +1,120 @@
+package com.weitongming.rpc.client;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 模拟过载：服务端10个工作线程、每个请求10ms，容量1000次/秒；客户端以2倍容量发送，超时100ms
+ * 不限流时排队无限增长，请求全部超时，有效吞吐崩溃；自适应并发上限使有效吞吐保持在容量附近
+ * 以毫秒为步长离散模拟，结果确定，不依赖机器速度
+ *
+ * @author tim.wei
+ */
+public class AdaptiveLimiterTest {
+    private static final int WORKERS = 10;
+    private static final int SERVICE_MILLIS = 10;
+    private static final int TIMEOUT_MILLIS = 100;
+    private static final int ARRIVALS_PER_MILLI = 2;
+    private static final int SECONDS = 10;
+    private static final int CAPACITY_PER_SECOND = WORKERS * 1000 / SERVICE_MILLIS;
+
+    @Test
+    public void goodputCollapsesWithoutLimit() {
+        long[] goodput = simulate(null);
+        //过载几百毫秒后请求全部超时
+        assertTrue("goodput " + goodput[SECONDS - 1], goodput[SECONDS - 1] < CAPACITY_PER_SECOND / 10);
+    }
+
+    @Test
+    public void goodputStaysNearCapacityWithAdaptiveLimit() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter();
+        long[] goodput = simulate(limiter);
+        //第一秒用于收敛，之后每秒的有效吞吐都不低于容量的80%
+        for (int second = 1; second < SECONDS; second++) {
+            assertTrue("second " + second + " goodput " + goodput[second], goodput[second] >= CAPACITY_PER_SECOND * 8 / 10);
+        }
+        //上限不低于工作线程数，也不会大到排队时间达到超时
+        assertTrue("limit " + limiter.getLimit(), limiter.getLimit() >= WORKERS && limiter.getLimit() < TIMEOUT_MILLIS / SERVICE_MILLIS * WORKERS);
+    }
+
+    @Test
+    public void permitsBalanceAfterOverload() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter();
+        simulate(limiter);
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    //返回每秒在超时时间内完成的请求数；limiter为null表示不限流
+    private static long[] simulate(AdaptiveLimiter limiter) {
+        long[] goodput = new long[SECONDS];
+        ArrayDeque<Call> queue = new ArrayDeque<Call>();
+        List<Call> running = new ArrayList<Call>();
+        List<Call> outstanding = new ArrayList<Call>();
+        int end = SECONDS * 1000;
+        //模拟结束后继续运行，直到所有请求完成或超时
+        for (int now = 0; now < end || !outstanding.isEmpty(); now++) {
+            if (now < end) {
+                for (int i = 0; i < ARRIVALS_PER_MILLI; i++) {
+                    //达到上限的请求在客户端直接拒绝，不发往服务端
+                    if (limiter == null || limiter.tryAcquire()) {
+                        Call call = new Call(now);
+                        queue.add(call);
+                        outstanding.add(call);
+                    }
+                }
+            }
+            //服务端按到达顺序处理，不知道客户端是否已经超时
+            for (int i = running.size() - 1; i >= 0; i--) {
+                Call call = running.get(i);
+                if (call.finishAt <= now) {
+                    running.remove(i);
+                    if (!call.timedOut) {
+                        call.done = true;
+                        outstanding.remove(call);
+                        if (now < end) {
+                            goodput[now / 1000]++;
+                        }
+                        if (limiter != null) {
+                            limiter.release(TimeUnit.MILLISECONDS.toNanos(now - call.sentAt), false);
+                        }
+                    }
+                }
+            }
+            while (running.size() < WORKERS && !queue.isEmpty()) {
+                Call call = queue.poll();
+                call.finishAt = now + SERVICE_MILLIS;
+                running.add(call);
+            }
+            //客户端超时
+            for (int i = outstanding.size() - 1; i >= 0; i--) {
+                Call call = outstanding.get(i);
+                if (now - call.sentAt >= TIMEOUT_MILLIS) {
+                    call.timedOut = true;
+                    outstanding.remove(i);
+                    if (limiter != null) {
+                        limiter.release(-1, true);
+                    }
+                }
+            }
+        }
+        return goodput;
+    }
+
+    private static final class Call {
+        final int sentAt;
+        int finishAt;
+        boolean timedOut;
+        boolean done;
+
+        Call(int sentAt) {
+            this.sentAt = sentAt;
+        }
+    }
+}
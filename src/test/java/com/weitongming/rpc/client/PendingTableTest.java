@@ -0,0 +1,116 @@
+package com.weitongming.rpc.client;
+
+import com.weitongming.rpc.protocol.MethodSignature;
+import com.weitongming.rpc.protocol.RpcRequest;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 在途请求表：槽位冲突、溢出表、统一清理和id复用，以及与连接断开竞争的登记
+ * @author tim.wei
+ */
+public class PendingTableTest {
+
+    private static RPCFuture future(long requestId) {
+        RpcRequest request = new RpcRequest();
+        request.setId(requestId);
+        return new RPCFuture(request);
+    }
+
+    @Test
+    public void collidingIdsProbeNextSlots() {
+        PendingTable table = new PendingTable(16);
+        //低位相同，落在同一个槽位
+        RPCFuture first = future(1);
+        RPCFuture second = future(17);
+        RPCFuture third = future(33);
+        table.put(1, first);
+        table.put(17, second);
+        table.put(33, third);
+        assertEquals(3, table.size());
+        assertSame(second, table.remove(17));
+        assertNull(table.remove(17));
+        assertSame(third, table.remove(33));
+        assertSame(first, table.remove(1));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void overflowsIntoMapWhenProbesAreExhausted() {
+        PendingTable table = new PendingTable(8);
+        for (long id = 1; id <= 20; id++) {
+            table.put(id, future(id));
+        }
+        assertEquals(20, table.size());
+        for (long id = 20; id >= 1; id--) {
+            RPCFuture future = table.remove(id);
+            assertEquals(id, future.getRequestId());
+        }
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void removeAllClearsSlotsAndOverflow() {
+        PendingTable table = new PendingTable(8);
+        for (long id = 1; id <= 20; id++) {
+            table.put(id, future(id));
+        }
+        List<RPCFuture> futures = table.removeAll();
+        Set<Long> ids = new HashSet<Long>();
+        for (RPCFuture future : futures) {
+            ids.add(future.getRequestId());
+        }
+        assertEquals(20, ids.size());
+        assertEquals(0, table.size());
+        assertTrue(table.removeAll().isEmpty());
+        assertNull(table.remove(5));
+    }
+
+    @Test
+    public void slotsAreReusedAfterRemoval() {
+        PendingTable table = new PendingTable(16);
+        //id自增绕过一圈后复用同一个槽位
+        for (long id = 1; id <= 1000; id++) {
+            RPCFuture future = future(id);
+            table.put(id, future);
+            assertSame(future, table.remove(id));
+        }
+        assertEquals(0, table.size());
+        //槽位里是别的请求时不会被误认领
+        table.put(3, future(3));
+        assertNull(table.remove(19));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void sendAfterChannelInactiveFailsImmediately() throws Exception {
+        RpcClientHandler handler = new RpcClientHandler();
+        EmbeddedChannel channel = new EmbeddedChannel(handler);
+        channel.close();
+        RpcRequest request = new RpcRequest();
+        request.setClassName("demo.Service");
+        request.setMethodName("call");
+        RPCFuture future = handler.sendRequest(request, new MethodSignature("demo.Service", "call", new Class<?>[0]), 0, null, null);
+        assertTrue(future.isDone());
+        assertEquals(0, handler.getPendingCount());
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage(), e.getCause().getMessage().startsWith("Channel closed"));
+        }
+        //没有写出
+        assertNull(channel.readOutbound());
+    }
+}
@@ -0,0 +1,77 @@
+package com.weitongming.rpc.client;
+
+import org.junit.Test;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 回调线程池满时回调交给后备线程，不在提交回调的线程内执行
+ * @author tim.wei
+ */
+public class RpcClientTest {
+
+    @Test
+    public void saturatedPoolHandsCallbackToFallback() throws Exception {
+        ExecutorService fallback = Executors.newSingleThreadExecutor();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(1),
+                new RpcClient.FallbackPolicy(fallback));
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch ran = new CountDownLatch(1);
+        final AtomicReference<Thread> callbackThread = new AtomicReference<Thread>();
+        try {
+            Runnable blocker = new Runnable() {
+                public void run() {
+                    try {
+                        blocked.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            //占满唯一的线程和队列
+            pool.execute(blocker);
+            pool.execute(blocker);
+            pool.execute(new Runnable() {
+                public void run() {
+                    callbackThread.set(Thread.currentThread());
+                    ran.countDown();
+                }
+            });
+            //线程池仍然阻塞，回调已经在后备线程执行
+            assertTrue(ran.await(5, TimeUnit.SECONDS));
+            assertNotSame(Thread.currentThread(), callbackThread.get());
+        } finally {
+            blocked.countDown();
+            pool.shutdown();
+            fallback.shutdown();
+        }
+    }
+
+    @Test
+    public void shutdownPoolDropsCallback() throws Exception {
+        final AtomicReference<Runnable> handedOff = new AtomicReference<Runnable>();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(1),
+                new RpcClient.FallbackPolicy(new Executor() {
+                    public void execute(Runnable command) {
+                        handedOff.set(command);
+                    }
+                }));
+        pool.shutdown();
+        pool.execute(new Runnable() {
+            public void run() {
+            }
+        });
+        assertNull(handedOff.get());
+    }
+}
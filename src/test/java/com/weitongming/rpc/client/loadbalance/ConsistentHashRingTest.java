@@ -0,0 +1,104 @@
+package com.weitongming.rpc.client.loadbalance;
+
+import com.weitongming.rpc.client.RoutingKey;
+import com.weitongming.rpc.client.proxy.MethodDescriptor;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 一致性hash环：键按内容定位，摘除N个节点中的一个时只有约1/N的键换节点
+ * @author tim.wei
+ */
+public class ConsistentHashRingTest {
+
+    private static final int NODES = 10;
+    private static final int KEYS = 100000;
+
+    private static Set<InetSocketAddress> nodes(int count) {
+        Set<InetSocketAddress> nodes = new LinkedHashSet<InetSocketAddress>();
+        for (int i = 0; i < count; i++) {
+            nodes.add(InetSocketAddress.createUnresolved("10.0.0." + (i + 1), 8000));
+        }
+        return nodes;
+    }
+
+    @Test
+    public void removingOneNodeMovesOnlyItsKeys() {
+        ConsistentHashRing ring = new ConsistentHashRing();
+        Set<InetSocketAddress> nodes = nodes(NODES);
+        ring.update(nodes);
+        Map<String, InetSocketAddress> before = new HashMap<String, InetSocketAddress>();
+        for (int i = 0; i < KEYS; i++) {
+            before.put("user-" + i, ring.locate("user-" + i));
+        }
+        InetSocketAddress removed = nodes.iterator().next();
+        nodes.remove(removed);
+        ring.update(nodes);
+        int moved = 0;
+        for (Map.Entry<String, InetSocketAddress> entry : before.entrySet()) {
+            InetSocketAddress after = ring.locate(entry.getKey());
+            if (!after.equals(entry.getValue())) {
+                moved++;
+                //只有被摘除节点上的键换节点
+                assertEquals(removed, entry.getValue());
+            }
+        }
+        double fraction = (double) moved / KEYS;
+        System.out.println("keys moved after removing 1 of " + NODES + " nodes: " + fraction);
+        assertTrue("moved " + fraction, fraction > 0.5 / NODES && fraction < 1.5 / NODES);
+    }
+
+    @Test
+    public void arraysAndEnumsHashByContent() {
+        ConsistentHashRing ring = new ConsistentHashRing();
+        ring.update(nodes(NODES));
+        //默认hashCode不同的两个实例落在同一节点
+        for (int i = 0; i < 100; i++) {
+            byte[] key = ("user-" + i).getBytes();
+            assertEquals(ring.locate(key), ring.locate(key.clone()));
+            assertEquals(ring.locate(new Object[]{key, i}), ring.locate(new Object[]{key.clone(), i}));
+        }
+        //枚举按名字计算，与进程无关
+        assertEquals(ring.locate("SECONDS"), ring.locate(TimeUnit.SECONDS));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsIdentityHashAtRuntime() {
+        ConsistentHashRing ring = new ConsistentHashRing();
+        ring.update(nodes(NODES));
+        ring.locate(new Object());
+    }
+
+    @Test
+    public void stableHashTypes() {
+        assertTrue(ConsistentHashRing.hasStableHash(String.class));
+        assertTrue(ConsistentHashRing.hasStableHash(long.class));
+        assertTrue(ConsistentHashRing.hasStableHash(byte[].class));
+        assertTrue(ConsistentHashRing.hasStableHash(TimeUnit.class));
+        //实际类型在调用时检查
+        assertTrue(ConsistentHashRing.hasStableHash(Object.class));
+        assertTrue(ConsistentHashRing.hasStableHash(Number.class));
+        assertFalse(ConsistentHashRing.hasStableHash(StringBuilder.class));
+        assertFalse(ConsistentHashRing.hasStableHash(Thread[].class));
+    }
+
+    public interface Cache {
+        @RoutingKey
+        String get(StringBuilder key);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsIdentityHashRoutingKeyParameter() throws Exception {
+        new MethodDescriptor(Cache.class, Cache.class.getMethod("get", StringBuilder.class));
+    }
+}
@@ -0,0 +1,116 @@
+package com.weitongming.rpc.client.loadbalance;
+
+import com.weitongming.rpc.client.RpcClientHandler;
+import com.weitongming.rpc.protocol.MethodSignature;
+import com.weitongming.rpc.protocol.RpcRequest;
+import com.weitongming.rpc.protocol.RpcResponse;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 一个节点变慢时各负载均衡策略的尾延迟，离散事件模拟，不依赖真实时钟：
+ * 4个节点各有2个工作线程，其中一个节点处理一次需要10ms，其余1ms，按泊松过程每秒到达2000个请求。
+ * 轮询仍给慢节点分四分之一（500/s，超过它200/s的处理能力），积压持续增长；
+ * 最少在途和P2C按各连接的在途请求数避开慢节点。
+ * 选择使用真实的RpcClientHandler，请求经EmbeddedChannel发出，模拟的完成时刻到达时写入响应
+ * @author tim.wei
+ */
+public class LoadBalancerSimulationTest {
+
+    private static final int NODES = 4;
+    private static final int WORKERS = 2;
+    private static final long FAST_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SLOW_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int REQUESTS_PER_SECOND = 2000;
+    private static final int REQUESTS = 10000;
+
+    private static final MethodSignature SIGNATURE = new MethodSignature("demo.Service", "call", new Class<?>[0]);
+
+    //模拟时刻完成的请求
+    private static final class Completion implements Comparable<Completion> {
+        final long timeNanos;
+        final int node;
+        final long requestId;
+
+        Completion(long timeNanos, int node, long requestId) {
+            this.timeNanos = timeNanos;
+            this.node = node;
+            this.requestId = requestId;
+        }
+
+        public int compareTo(Completion other) {
+            return Long.compare(timeNanos, other.timeNanos);
+        }
+    }
+
+    //返回每个请求的模拟耗时（纳秒），已排序
+    private static long[] simulate(LoadBalancer loadBalancer) {
+        Random random = new Random(42);
+        EmbeddedChannel[] channels = new EmbeddedChannel[NODES];
+        RpcClientHandler[] handlers = new RpcClientHandler[NODES];
+        //每个节点各工作线程空闲的时刻
+        long[][] workers = new long[NODES][WORKERS];
+        for (int i = 0; i < NODES; i++) {
+            handlers[i] = new RpcClientHandler();
+            channels[i] = new EmbeddedChannel(handlers[i]);
+        }
+        PriorityQueue<Completion> completions = new PriorityQueue<Completion>();
+        long[] latencies = new long[REQUESTS];
+        long now = 0;
+        for (int n = 0; n < REQUESTS; n++) {
+            now += (long) (-Math.log(1 - random.nextDouble()) * TimeUnit.SECONDS.toNanos(1) / REQUESTS_PER_SECOND);
+            while (!completions.isEmpty() && completions.peek().timeNanos <= now) {
+                Completion completion = completions.poll();
+                RpcResponse response = new RpcResponse();
+                response.setId(completion.requestId);
+                channels[completion.node].writeInbound(response);
+            }
+            RpcRequest request = new RpcRequest();
+            request.setClassName(SIGNATURE.getClassName());
+            request.setMethodName(SIGNATURE.getMethodName());
+            RpcClientHandler handler = loadBalancer.select(handlers, request);
+            int node = Arrays.asList(handlers).indexOf(handler);
+            handler.sendRequest(request, SIGNATURE, 0, null, null);
+            channels[node].readOutbound();
+            //交给最早空闲的工作线程
+            long[] free = workers[node];
+            int worker = free[0] <= free[1] ? 0 : 1;
+            long done = Math.max(now, free[worker]) + (node == 0 ? SLOW_NANOS : FAST_NANOS);
+            free[worker] = done;
+            latencies[n] = done - now;
+            completions.add(new Completion(done, node, request.getId()));
+        }
+        for (EmbeddedChannel channel : channels) {
+            channel.finish();
+        }
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    private static double p99Millis(LoadBalancer loadBalancer) {
+        long[] latencies = simulate(loadBalancer);
+        double p99 = latencies[latencies.length * 99 / 100] / 1e6;
+        System.out.println(loadBalancer.getClass().getSimpleName() + " p50 " + latencies[latencies.length / 2] / 1e6
+                + "ms, p99 " + p99 + "ms");
+        return p99;
+    }
+
+    @Test
+    public void pendingAwareStrategiesAvoidSlowNode() {
+        double roundRobin = p99Millis(new RoundRobinLoadBalancer());
+        double leastPending = p99Millis(new LeastPendingLoadBalancer());
+        double p2c = p99Millis(new P2CLoadBalancer());
+        //轮询时慢节点的积压持续增长，尾延迟达到秒级
+        assertTrue(roundRobin > 1000);
+        //两种策略的随机数未固定种子，只断言数量级
+        assertTrue("least pending p99 " + leastPending, leastPending * 10 < roundRobin);
+        assertTrue("p2c p99 " + p2c, p2c * 10 < roundRobin);
+    }
+}
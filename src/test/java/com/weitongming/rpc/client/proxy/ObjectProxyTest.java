@@ -0,0 +1,68 @@
+package com.weitongming.rpc.client.proxy;
+
+import com.weitongming.rpc.protocol.RpcRequest;
+import com.weitongming.rpc.protocol.Serializer;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 代理按预先解析的MethodDescriptor构造请求，不再每次反射、生成UUID
+ * 计时对比见ProxyBenchmark
+ * @author tim.wei
+ */
+public class ObjectProxyTest {
+
+    private static final int ITERATIONS = 20000;
+
+    @Test
+    public void requestCarriesDescriptorMetadata() throws Exception {
+        Method method = ProxyBenchmark.Greeter.class.getMethod("greet", String.class, int.class);
+        MethodDescriptor descriptor = new MethodDescriptor(ProxyBenchmark.Greeter.class, method);
+        Object[] args = new Object[]{"world", 3};
+        RpcRequest request = new ObjectProxy<ProxyBenchmark.Greeter>(ProxyBenchmark.Greeter.class).newRequest(descriptor, args);
+        assertEquals(ProxyBenchmark.Greeter.class.getName(), request.getClassName());
+        assertEquals("greet", request.getMethodName());
+        assertArrayEquals(new Class<?>[]{String.class, int.class}, request.getParameterTypes());
+        //参数类型数组共享，不再每次复制
+        assertSame(descriptor.getParameterTypes(), request.getParameterTypes());
+        assertSame(args, request.getParameters());
+        assertEquals(Serializer.PROTOSTUFF, request.getSerializer());
+        //请求id由发送的连接分配
+        assertNull(request.getRequestId());
+    }
+
+    @Test
+    public void allocatesLessThanReflection() throws Exception {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        ProxyBenchmark benchmark = new ProxyBenchmark();
+        benchmark.setup();
+        for (int i = 0; i < ITERATIONS; i++) {
+            benchmark.reflection();
+            benchmark.descriptor();
+        }
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ITERATIONS; i++) {
+            benchmark.reflection();
+        }
+        long reflection = (threads.getThreadAllocatedBytes(threadId) - before) / ITERATIONS;
+        before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ITERATIONS; i++) {
+            benchmark.descriptor();
+        }
+        long descriptor = (threads.getThreadAllocatedBytes(threadId) - before) / ITERATIONS;
+        System.out.println("bytes allocated per request: reflection " + reflection + ", descriptor " + descriptor);
+        //只剩RpcRequest本身
+        assertTrue("reflection allocated " + reflection + ", descriptor " + descriptor, descriptor * 2 < reflection);
+    }
+}
@@ -0,0 +1,86 @@
+package com.weitongming.rpc.client.proxy;
+
+import com.weitongming.rpc.protocol.RpcRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 客户端每次调用构造请求的开销：原实现每次反射读取方法元数据、生成UUID并拼接调试日志，
+ * 现在按Method取预先解析的MethodDescriptor后只打包参数
+ * mvn -Pbenchmark test-compile exec:exec -Dbenchmark=ProxyBenchmark
+ * @author tim.wei
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProxyBenchmark {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ProxyBenchmark.class);
+
+    public interface Greeter {
+        String greet(String name, int times);
+    }
+
+    private final Object[] args = new Object[]{"world", 3};
+    private ObjectProxy<Greeter> proxy;
+    private Map<Method, MethodDescriptor> descriptors;
+    private Method method;
+
+    @Setup
+    public void setup() throws Exception {
+        proxy = new ObjectProxy<Greeter>(Greeter.class);
+        method = Greeter.class.getMethod("greet", String.class, int.class);
+        //与ObjectProxy.invoke相同，按Method查找
+        descriptors = new HashMap<Method, MethodDescriptor>();
+        descriptors.put(method, new MethodDescriptor(Greeter.class, method));
+    }
+
+    //原ObjectProxy.invoke的做法
+    static RpcRequest legacyRequest(Method method, Object[] args) {
+        RpcRequest request = new RpcRequest();
+        request.setRequestId(UUID.randomUUID().toString());
+        request.setClassName(method.getDeclaringClass().getName());
+        request.setMethodName(method.getName());
+        request.setParameterTypes(method.getParameterTypes());
+        request.setParameters(args);
+        LOGGER.debug(method.getDeclaringClass().getName());
+        LOGGER.debug(method.getName());
+        for (int i = 0; i < method.getParameterTypes().length; ++i) {
+            LOGGER.debug(method.getParameterTypes()[i].getName());
+        }
+        if (args != null) {
+            for (int i = 0; i < args.length; ++i) {
+                LOGGER.debug(args[i].toString());
+            }
+        }
+        return request;
+    }
+
+    @Benchmark
+    public RpcRequest reflection() {
+        return legacyRequest(method, args);
+    }
+
+    @Benchmark
+    public RpcRequest descriptor() {
+        return proxy.newRequest(descriptors.get(method), args);
+    }
+}
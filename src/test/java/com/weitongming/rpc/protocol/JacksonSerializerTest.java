@@ -0,0 +1,89 @@
+package com.weitongming.rpc.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 对端写入的类名不决定本端实例化的类，参数和结果只按声明类型绑定
+ * @author tim.wei
+ */
+public class JacksonSerializerTest {
+
+    private final JacksonSerializer serializer = new JacksonSerializer();
+
+    public static class Item {
+        public String name;
+        public int count;
+    }
+
+    //构造或调用setter时计数
+    public static class Probe {
+        static int touched;
+
+        public Probe() {
+            touched++;
+        }
+
+        public void setUrl(String url) {
+            touched++;
+        }
+    }
+
+    @Test
+    public void typeIdsFromPeerAreIgnored() {
+        String json = "{\"className\":\"x\",\"parameters\":["
+                + "[\"com.sun.rowset.JdbcRowSetImpl\",{\"dataSourceName\":\"ldap://127.0.0.1/x\",\"autoCommit\":true}],"
+                + "[\"" + Probe.class.getName() + "\",{\"url\":\"ldap://127.0.0.1/x\"}]]}";
+        RpcRequest request = serializer.deserialize(Unpooled.copiedBuffer(json, StandardCharsets.UTF_8), RpcRequest.class);
+        Object first = serializer.bind(request.getParameters()[0], Object.class);
+        Object second = serializer.bind(request.getParameters()[1], Object.class);
+        assertTrue(first instanceof Map);
+        assertTrue(second instanceof Map);
+        assertEquals(0, Probe.touched);
+    }
+
+    @Test
+    public void bindsToDeclaredGenericType() throws Exception {
+        Item item = new Item();
+        item.name = "a";
+        item.count = 3;
+        RpcRequest request = new RpcRequest();
+        request.setParameters(new Object[]{Arrays.asList(item), 7, null});
+        ByteBuf buf = Unpooled.buffer();
+        serializer.serialize(request, buf);
+        RpcRequest decoded = serializer.deserialize(buf, RpcRequest.class);
+
+        Object[] parameters = decoded.getParameters();
+        List<?> items = (List<?>) serializer.bind(parameters[0], Holder.class.getMethod("items", List.class).getGenericParameterTypes()[0]);
+        assertEquals(Item.class, items.get(0).getClass());
+        assertEquals(3, ((Item) items.get(0)).count);
+        assertEquals(7L, serializer.bind(parameters[1], long.class));
+        assertEquals(null, parameters[2]);
+    }
+
+    @Test
+    public void errorSurvivesRoundTrip() {
+        RpcResponse response = new RpcResponse();
+        response.setError("boom");
+        ByteBuf buf = Unpooled.buffer();
+        serializer.serialize(response, buf);
+        RpcResponse decoded = serializer.deserialize(buf, RpcResponse.class);
+        assertTrue(decoded.isError());
+        assertEquals("boom", decoded.getError());
+        assertFalse(decoded.isOverloaded());
+    }
+
+    interface Holder {
+        void items(List<Item> items);
+    }
+}
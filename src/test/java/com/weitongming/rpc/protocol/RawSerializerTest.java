@@ -0,0 +1,85 @@
+package com.weitongming.rpc.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.CorruptedFrameException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * RAW帧中的个数和长度来自对端，不合法时拒绝解析，不按其分配内存
+ * @author tim.wei
+ */
+public class RawSerializerTest {
+
+    private final RawSerializer serializer = new RawSerializer();
+
+    private static RpcRequest request(Object... parameters) {
+        RpcRequest request = new RpcRequest();
+        request.setClassName("x");
+        request.setMethodName("y");
+        request.setParameters(parameters);
+        return request;
+    }
+
+    //只保留protostuff部分，去掉末尾4字节的个数，字节数组部分由用例自己拼
+    private static ByteBuf envelope() {
+        ByteBuf out = Unpooled.buffer();
+        new RawSerializer().serialize(request(), out);
+        out.writerIndex(out.writerIndex() - 4);
+        return out;
+    }
+
+    @Test
+    public void roundTrip() {
+        ByteBuf out = Unpooled.buffer();
+        serializer.serialize(request(new byte[]{1, 2}, null, new byte[0]), out);
+        RpcRequest decoded = serializer.deserialize(out, RpcRequest.class);
+        Object[] parameters = decoded.getParameters();
+        assertEquals(3, parameters.length);
+        assertArrayEquals(new byte[]{1, 2}, (byte[]) parameters[0]);
+        assertNull(parameters[1]);
+        assertArrayEquals(new byte[0], (byte[]) parameters[2]);
+    }
+
+    @Test(expected = CorruptedFrameException.class)
+    public void rejectsTruncatedValue() {
+        ByteBuf out = Unpooled.buffer();
+        serializer.serialize(request(new byte[64]), out);
+        out.writerIndex(out.writerIndex() - 1);
+        serializer.deserialize(out, RpcRequest.class);
+    }
+
+    @Test(expected = CorruptedFrameException.class)
+    public void rejectsOversizedCount() {
+        ByteBuf out = envelope();
+        out.writeInt(Integer.MAX_VALUE);
+        serializer.deserialize(out, RpcRequest.class);
+    }
+
+    @Test(expected = CorruptedFrameException.class)
+    public void rejectsNegativeCount() {
+        ByteBuf out = envelope();
+        out.writeInt(-2);
+        serializer.deserialize(out, RpcRequest.class);
+    }
+
+    @Test(expected = CorruptedFrameException.class)
+    public void rejectsOversizedLength() {
+        ByteBuf out = envelope();
+        out.writeInt(1);
+        out.writeInt(Integer.MAX_VALUE);
+        serializer.deserialize(out, RpcRequest.class);
+    }
+
+    @Test(expected = CorruptedFrameException.class)
+    public void rejectsOversizedEnvelope() {
+        ByteBuf out = Unpooled.buffer();
+        out.writeInt(Integer.MAX_VALUE);
+        out.writeInt(-1);
+        serializer.deserialize(out, RpcRequest.class);
+    }
+}
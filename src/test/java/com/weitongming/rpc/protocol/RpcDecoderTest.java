@@ -0,0 +1,161 @@
+package com.weitongming.rpc.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.TooLongFrameException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 分片帧由ChunkedFrameWriter写出，交错到达时按流id重组；单个消息、同时重组的消息数和合计内存都有上限
+ * @author tim.wei
+ */
+public class RpcDecoderTest {
+
+    private static final int CHUNK_SIZE = 256;
+
+    //同一个写出端分配的流id各不相同
+    private final EmbeddedChannel writer = new EmbeddedChannel(new ChunkedFrameWriter(CHUNK_SIZE), new RpcEncoder(RpcRequest.class));
+
+    private static RpcRequest request(String methodName, int size) {
+        char[] text = new char[size];
+        Arrays.fill(text, 'x');
+        RpcRequest request = new RpcRequest();
+        request.setClassName("demo.Service");
+        request.setMethodName(methodName);
+        request.setParameterTypes(new Class<?>[]{String.class});
+        request.setParameters(new Object[]{new String(text)});
+        request.setSerializer(Serializer.PROTOSTUFF);
+        return request;
+    }
+
+    //经编码和分片写出后，按长度字段切成一个个帧
+    private List<ByteBuf> chunks(RpcRequest request) {
+        //分片在上一片写出的回调中继续写，回调嵌套过深时netty改为提交任务，需要驱动事件循环直到写完
+        ChannelFuture written = writer.writeAndFlush(request);
+        while (!written.isDone()) {
+            writer.runPendingTasks();
+        }
+        assertTrue(written.isSuccess());
+        ByteBuf wire = Unpooled.buffer();
+        Object out;
+        while ((out = writer.readOutbound()) != null) {
+            ByteBuf buf = (ByteBuf) out;
+            wire.writeBytes(buf);
+            buf.release();
+        }
+        List<ByteBuf> frames = new ArrayList<ByteBuf>();
+        while (wire.isReadable()) {
+            frames.add(wire.readSlice(4 + wire.getInt(wire.readerIndex())));
+        }
+        return frames;
+    }
+
+    private static RpcDecoder decoder(int maxMessageLength, int maxOpenStreams, int maxBufferedLength) {
+        return new RpcDecoder(RpcRequest.class, RpcDecoder.MAX_FRAME_LENGTH, maxMessageLength, maxOpenStreams, maxBufferedLength);
+    }
+
+    @Test
+    public void interleavedChunksAreReassembled() {
+        List<ByteBuf> first = chunks(request("first", 4000));
+        List<ByteBuf> second = chunks(request("second", 2400));
+        assertTrue(first.size() > 2 && second.size() > 2);
+
+        EmbeddedChannel channel = new EmbeddedChannel(new RpcDecoder(RpcRequest.class));
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) {
+                channel.writeInbound(first.get(i).retain());
+            }
+            if (i < second.size()) {
+                channel.writeInbound(second.get(i).retain());
+            }
+        }
+        //短的消息先收齐
+        RpcRequest a = (RpcRequest) channel.readInbound();
+        RpcRequest b = (RpcRequest) channel.readInbound();
+        assertEquals("second", a.getMethodName());
+        assertEquals(2400, ((String) a.getParameters()[0]).length());
+        assertEquals("first", b.getMethodName());
+        assertEquals(4000, ((String) b.getParameters()[0]).length());
+        assertNull(channel.readInbound());
+    }
+
+    @Test
+    public void smallFramesPassBetweenChunks() {
+        List<ByteBuf> large = chunks(request("large", 4000));
+        List<ByteBuf> small = chunks(request("small", 10));
+        assertEquals(1, small.size());
+
+        EmbeddedChannel channel = new EmbeddedChannel(new RpcDecoder(RpcRequest.class));
+        channel.writeInbound(large.get(0).retain());
+        channel.writeInbound(small.get(0).retain());
+        assertEquals("small", ((RpcRequest) channel.readInbound()).getMethodName());
+        for (ByteBuf chunk : large.subList(1, large.size())) {
+            channel.writeInbound(chunk.retain());
+        }
+        assertEquals("large", ((RpcRequest) channel.readInbound()).getMethodName());
+    }
+
+    @Test
+    public void messageLongerThanCapIsRejected() {
+        EmbeddedChannel channel = new EmbeddedChannel(decoder(1024, RpcProtocol.MAX_OPEN_STREAMS, RpcProtocol.MAX_BUFFERED_LENGTH));
+        try {
+            for (ByteBuf chunk : chunks(request("large", 4000))) {
+                channel.writeInbound(chunk.retain());
+            }
+            fail("expected TooLongFrameException");
+        } catch (TooLongFrameException e) {
+            assertTrue(e.getMessage().contains("1024"));
+        }
+        //超长的单个消息只丢弃该消息，连接仍可继续使用
+        channel.writeInbound(chunks(request("small", 10)).get(0).retain());
+        assertEquals("small", ((RpcRequest) channel.readInbound()).getMethodName());
+    }
+
+    @Test
+    public void tooManyOpenStreamsClosesChannel() {
+        EmbeddedChannel channel = new EmbeddedChannel(decoder(RpcProtocol.MAX_MESSAGE_LENGTH, 2, RpcProtocol.MAX_BUFFERED_LENGTH));
+        ByteBuf first = chunks(request("large", 4000)).get(0);
+        try {
+            //同一个首片改写流id，模拟对端不断打开新的流
+            for (int streamId = 1; streamId <= 3; streamId++) {
+                ByteBuf chunk = first.copy();
+                chunk.setInt(4 + RpcProtocol.HEADER_LENGTH, streamId);
+                channel.writeInbound(chunk);
+            }
+            fail("expected TooLongFrameException");
+        } catch (TooLongFrameException e) {
+            assertTrue(e.getMessage().contains("streams"));
+        }
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void tooManyBufferedBytesClosesChannel() {
+        EmbeddedChannel channel = new EmbeddedChannel(decoder(RpcProtocol.MAX_MESSAGE_LENGTH, RpcProtocol.MAX_OPEN_STREAMS, 3 * CHUNK_SIZE));
+        List<ByteBuf> first = chunks(request("first", 4000));
+        List<ByteBuf> second = chunks(request("second", 4000));
+        try {
+            for (int i = 0; i < first.size(); i++) {
+                channel.writeInbound(first.get(i).retain());
+                channel.writeInbound(second.get(i).retain());
+            }
+            fail("expected TooLongFrameException");
+        } catch (TooLongFrameException e) {
+            assertTrue(e.getMessage().contains("in total"));
+        }
+        assertFalse(channel.isOpen());
+        assertNull(channel.readInbound());
+    }
+}
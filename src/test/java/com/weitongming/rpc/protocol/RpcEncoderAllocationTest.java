@@ -0,0 +1,67 @@
+package com.weitongming.rpc.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 直接序列化进ByteBuf，每次编码只有protostuff的少量临时对象，不再分配缓冲区和结果数组
+ * 计时对比见RpcEncoderBenchmark
+ * @author tim.wei
+ */
+public class RpcEncoderAllocationTest {
+
+    private static final int ITERATIONS = 20000;
+
+    private interface Encode {
+        void run(ByteBuf out) throws Exception;
+    }
+
+    private static long bytesPerCall(Encode encode) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        ByteBuf out = Unpooled.directBuffer(4096);
+        try {
+            //预热，排除类加载和线程私有缓冲区的首次分配
+            for (int i = 0; i < ITERATIONS; i++) {
+                out.clear();
+                encode.run(out);
+            }
+            long before = threads.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < ITERATIONS; i++) {
+                out.clear();
+                encode.run(out);
+            }
+            return (threads.getThreadAllocatedBytes(threadId) - before) / ITERATIONS;
+        } finally {
+            out.release();
+        }
+    }
+
+    @Test
+    public void encodesWithoutPerCallBuffers() throws Exception {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        final RpcRequest request = RpcEncoderBenchmark.typicalRequest();
+        final RpcEncoder encoder = new RpcEncoder(RpcRequest.class);
+
+        long byteArray = bytesPerCall(new Encode() {
+            public void run(ByteBuf out) {
+                RpcEncoderBenchmark.encodeViaByteArray(request, out);
+            }
+        });
+        long direct = bytesPerCall(new Encode() {
+            public void run(ByteBuf out) throws Exception {
+                encoder.encode(null, request, out);
+            }
+        });
+        System.out.println("bytes allocated per encode: byte[] path " + byteArray + ", direct " + direct);
+        //原实现每次至少分配512字节的LinkedBuffer和结果数组
+        assertTrue("byte[] path allocated " + byteArray, byteArray >= 512);
+        assertTrue("direct path allocated " + direct, direct < 128);
+    }
+}
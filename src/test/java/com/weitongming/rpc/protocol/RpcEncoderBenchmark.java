@@ -0,0 +1,88 @@
+package com.weitongming.rpc.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 编码一个请求的耗时和分配：先序列化成byte[]再拷贝进ByteBuf（原实现） vs 直接序列化进ByteBuf（RpcEncoder）
+ * 每次调用分配的字节数看 -prof gc 输出的 gc.alloc.rate.norm：
+ * mvn -Pbenchmark test-compile exec:exec -Dbenchmark="RpcEncoderBenchmark -prof gc"
+ * @author tim.wei
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RpcEncoderBenchmark {
+
+    private final RpcEncoder encoder = new RpcEncoder(RpcRequest.class);
+    private RpcRequest request;
+    private ByteBuf out;
+
+    //典型的两个参数的请求
+    static RpcRequest typicalRequest() {
+        RpcRequest request = new RpcRequest();
+        request.setId(42);
+        request.setClassName("com.weitongming.rpc.demo.HelloService");
+        request.setMethodName("hello");
+        request.setParameterTypes(new Class<?>[]{String.class, int.class});
+        request.setParameters(new Object[]{"world", 7});
+        return request;
+    }
+
+    //原实现：每次分配LinkedBuffer和结果byte[]，再拷贝一次
+    static void encodeViaByteArray(RpcRequest request, ByteBuf out) {
+        byte[] data = SerializationUtil.serialize(request);
+        out.writeInt(data.length);
+        out.writeBytes(data);
+    }
+
+    @Setup
+    public void setup() {
+        request = typicalRequest();
+        out = Unpooled.directBuffer(4096);
+    }
+
+    @TearDown
+    public void tearDown() {
+        out.release();
+    }
+
+    @Benchmark
+    public ByteBuf byteArray() {
+        out.clear();
+        encodeViaByteArray(request, out);
+        return out;
+    }
+
+    @Benchmark
+    public ByteBuf direct() throws Exception {
+        out.clear();
+        request.setSerializer(RpcProtocol.LEGACY);
+        encoder.encode(null, request, out);
+        return out;
+    }
+
+    @Benchmark
+    public ByteBuf directWithHeader() throws Exception {
+        out.clear();
+        request.setSerializer(Serializer.PROTOSTUFF);
+        encoder.encode(null, request, out);
+        return out;
+    }
+}
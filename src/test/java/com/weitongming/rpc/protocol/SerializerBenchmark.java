@@ -0,0 +1,122 @@
+package com.weitongming.rpc.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 各序列化方式对典型请求和响应的编码、编解码往返耗时，帧体字节数在Setup中打印，并由SerializerPayloadTest校验
+ * RAW只支持byte[]参数和结果，只参与byte[]的用例
+ * mvn -Pbenchmark test-compile exec:exec -Dbenchmark=SerializerBenchmark
+ * @author tim.wei
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializerBenchmark {
+
+    //序列化方式/用例
+    @Param({"1/requestArgs", "2/requestArgs",
+            "1/requestBytes", "2/requestBytes", "3/requestBytes",
+            "1/responseStrings", "2/responseStrings",
+            "1/responseBytes", "2/responseBytes", "3/responseBytes"})
+    public String scenario;
+
+    private Serializer serializer;
+    private RpcMessage message;
+    private Class<?> type;
+    private ByteBuf out;
+
+    static RpcMessage message(String shape) {
+        if ("requestArgs".equals(shape)) {
+            return request(new Class<?>[]{String.class, int.class}, new Object[]{"world", 7});
+        } else if ("requestBytes".equals(shape)) {
+            return request(new Class<?>[]{byte[].class}, new Object[]{new byte[64]});
+        } else if ("responseStrings".equals(shape)) {
+            List<String> strings = new ArrayList<String>();
+            for (int i = 0; i < 100; i++) {
+                strings.add("item-" + i);
+            }
+            return response(strings);
+        } else if ("responseBytes".equals(shape)) {
+            return response(new byte[1024]);
+        }
+        throw new IllegalArgumentException(shape);
+    }
+
+    private static RpcRequest request(Class<?>[] parameterTypes, Object[] parameters) {
+        RpcRequest request = new RpcRequest();
+        request.setId(42);
+        request.setMethodId(3);
+        request.setClassName("com.weitongming.rpc.demo.HelloService");
+        request.setMethodName("hello");
+        request.setParameterTypes(parameterTypes);
+        request.setParameters(parameters);
+        return request;
+    }
+
+    private static RpcResponse response(Object result) {
+        RpcResponse response = new RpcResponse();
+        response.setId(42);
+        response.setResult(result);
+        return response;
+    }
+
+    //帧体字节数
+    static int payloadSize(byte serializer, RpcMessage message) {
+        ByteBuf buf = Unpooled.buffer();
+        try {
+            SerializerFactory.get(serializer).serialize(message, buf);
+            return buf.readableBytes();
+        } finally {
+            buf.release();
+        }
+    }
+
+    @Setup
+    public void setup() {
+        String[] parts = scenario.split("/");
+        serializer = SerializerFactory.get(Byte.parseByte(parts[0]));
+        message = message(parts[1]);
+        type = message instanceof RpcRequest ? RpcRequest.class : RpcResponse.class;
+        out = Unpooled.directBuffer(4096);
+        System.out.println(scenario + " payload bytes: " + payloadSize(serializer.getId(), message));
+    }
+
+    @TearDown
+    public void tearDown() {
+        out.release();
+    }
+
+    @Benchmark
+    public ByteBuf encode() {
+        out.clear();
+        serializer.serialize(message, out);
+        return out;
+    }
+
+    @Benchmark
+    public Object roundTrip() {
+        out.clear();
+        serializer.serialize(message, out);
+        return serializer.deserialize(out, type);
+    }
+}
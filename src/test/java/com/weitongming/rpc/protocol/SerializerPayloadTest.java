@@ -0,0 +1,48 @@
+package com.weitongming.rpc.protocol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 各序列化方式的帧体大小：byte[]参数RAW最小，byte[]经Jackson转为base64最大，字符串为主时protostuff和Jackson相近
+ * 耗时对比见SerializerBenchmark
+ * @author tim.wei
+ */
+public class SerializerPayloadTest {
+
+    private static int size(byte serializer, String shape) {
+        return SerializerBenchmark.payloadSize(serializer, SerializerBenchmark.message(shape));
+    }
+
+    @Test
+    public void rawIsSmallestForBytes() {
+        int protostuff = size(Serializer.PROTOSTUFF, "requestBytes");
+        int jackson = size(Serializer.JACKSON, "requestBytes");
+        int raw = size(Serializer.RAW, "requestBytes");
+        System.out.println("64-byte request: protostuff " + protostuff + ", jackson " + jackson + ", raw " + raw);
+        assertTrue(raw < protostuff);
+        assertTrue(protostuff < jackson);
+    }
+
+    @Test
+    public void jacksonEncodesBytesAsBase64() {
+        int protostuff = size(Serializer.PROTOSTUFF, "responseBytes");
+        int jackson = size(Serializer.JACKSON, "responseBytes");
+        int raw = size(Serializer.RAW, "responseBytes");
+        System.out.println("1KB response: protostuff " + protostuff + ", jackson " + jackson + ", raw " + raw);
+        //base64约为原长度的4/3
+        assertTrue(jackson > 1024 * 4 / 3);
+        assertTrue(protostuff < 1024 + 32);
+        assertTrue(raw < 1024 + 32);
+    }
+
+    @Test
+    public void stringsAreComparable() {
+        int protostuff = size(Serializer.PROTOSTUFF, "responseStrings");
+        int jackson = size(Serializer.JACKSON, "responseStrings");
+        System.out.println("100 strings: protostuff " + protostuff + ", jackson " + jackson);
+        //都以字符串内容为主，相差不到两成
+        assertTrue(Math.abs(protostuff - jackson) * 5 < protostuff);
+    }
+}
@@ -0,0 +1,138 @@
+package com.weitongming.rpc.protocol;
+
+import com.weitongming.rpc.client.RPCFuture;
+import com.weitongming.rpc.client.RpcClientHandler;
+import com.weitongming.rpc.server.DispatchTable;
+import com.weitongming.rpc.server.RpcHandler;
+import com.weitongming.rpc.server.RpcHandlerTest;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalEventLoopGroup;
+import io.netty.channel.local.LocalServerChannel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 合并写在积压达到批量大小、读完一批消息和连接断开时立即写出，不等待配置的延迟
+ * 延迟设为10秒，使用本地传输的真实事件循环
+ * @author tim.wei
+ */
+public class WriteBatcherTest {
+
+    private static final long DELAY_MICROS = TimeUnit.SECONDS.toMicros(10);
+    private static final AtomicInteger ADDRESSES = new AtomicInteger();
+
+    private EventLoopGroup group;
+    private LocalAddress address;
+    //对端收到的消息
+    private final BlockingQueue<Object> received = new LinkedBlockingQueue<Object>();
+
+    @Before
+    public void setup() {
+        group = new LocalEventLoopGroup(2);
+        address = new LocalAddress("write-batcher-test-" + ADDRESSES.incrementAndGet());
+    }
+
+    @After
+    public void tearDown() {
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    }
+
+    private ChannelHandler collector() {
+        return new ChannelInboundHandlerAdapter() {
+            @Override
+            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                received.add(msg);
+            }
+        };
+    }
+
+    private Channel connect(ChannelHandler serverHandler, ChannelHandler clientHandler) throws Exception {
+        new ServerBootstrap().group(group).channel(LocalServerChannel.class).childHandler(serverHandler)
+                .bind(address).sync();
+        return new Bootstrap().group(group).channel(LocalChannel.class).handler(clientHandler)
+                .connect(address).sync().channel();
+    }
+
+    @Test
+    public void flushesOnBatchSize() throws Exception {
+        Channel channel = connect(collector(), new ChannelInboundHandlerAdapter());
+        WriteBatcher batcher = new WriteBatcher(channel, 3, DELAY_MICROS);
+        batcher.write("a");
+        batcher.write("b");
+        assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+        batcher.write("c");
+        assertEquals("a", received.poll(1, TimeUnit.SECONDS));
+        assertEquals("b", received.poll(1, TimeUnit.SECONDS));
+        assertEquals("c", received.poll(1, TimeUnit.SECONDS));
+        //写出后重新计数
+        batcher.write("d");
+        batcher.write("e");
+        assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+        batcher.write("f");
+        assertEquals("d", received.poll(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void flushesOnReadComplete() throws Exception {
+        DispatchTable table = new DispatchTable(Collections.<String, Object>singletonMap(
+                RpcHandlerTest.Calculator.class.getName(), new RpcHandlerTest.CalculatorImpl()));
+        Channel channel = connect(new RpcHandler(table, 16, DELAY_MICROS), collector());
+        RpcRequest request = new RpcRequest();
+        request.setRequestId("1");
+        request.setClassName(RpcHandlerTest.Calculator.class.getName());
+        request.setMethodName("add");
+        request.setParameterTypes(new Class<?>[]{int.class, int.class});
+        request.setParameters(new Object[]{2, 3});
+        channel.writeAndFlush(request);
+        //服务方法在IO线程内执行，读完即写出响应
+        RpcResponse response = (RpcResponse) received.poll(1, TimeUnit.SECONDS);
+        assertNotNull(response);
+        assertEquals(5, response.getResult());
+    }
+
+    @Test
+    public void flushesOnChannelClose() throws Exception {
+        RpcClientHandler handler = new RpcClientHandler(16, DELAY_MICROS);
+        Channel channel = connect(collector(), handler);
+        RpcRequest request = new RpcRequest();
+        request.setClassName("demo.Service");
+        request.setMethodName("call");
+        RPCFuture written = handler.sendOneWay(request, new MethodSignature("demo.Service", "call", new Class<?>[0]), 0, null, null);
+        ChannelFuture closed = channel.close().sync();
+        assertTrue(closed.isSuccess());
+        //单向调用不在在途表中，积压的写出随连接断开立即失败
+        assertTrue(written.isDone() || waitDone(written));
+        assertTrue(written.isCompletedExceptionally());
+        assertFalse(received.contains(request));
+    }
+
+    private static boolean waitDone(RPCFuture future) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (!future.isDone() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        return future.isDone();
+    }
+}
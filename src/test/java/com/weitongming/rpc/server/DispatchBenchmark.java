@@ -0,0 +1,81 @@
+package com.weitongming.rpc.server;
+
+import net.sf.cglib.reflect.FastClass;
+import net.sf.cglib.reflect.FastMethod;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 服务端每次调用的分发开销：原实现每次按类名取bean、FastClass.create、getMethod再调用，
+ * 分发表按签名查找或按方法id取下标后直接调用
+ * mvn -Pbenchmark test-compile exec:exec -Dbenchmark=DispatchBenchmark
+ * @author tim.wei
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DispatchBenchmark.class);
+
+    private final String className = DispatchTableTest.Calculator.class.getName();
+    private final Class<?>[] parameterTypes = new Class<?>[]{int.class, int.class};
+    private final Object[] parameters = new Object[]{2, 3};
+    private Map<String, Object> handlerMap;
+    private DispatchTable table;
+    private int methodId;
+
+    @Setup
+    public void setup() {
+        handlerMap = new HashMap<String, Object>();
+        handlerMap.put(className, new DispatchTableTest.CalculatorImpl());
+        table = new DispatchTable(handlerMap);
+        methodId = table.find(className, "add", parameterTypes).getId();
+    }
+
+    //原RpcHandler.handle的做法，包括无论日志级别都会执行的字符串拼接
+    @Benchmark
+    public Object perRequestFastClass() throws Exception {
+        Object serviceBean = handlerMap.get(className);
+        Class<?> serviceClass = serviceBean.getClass();
+        LOGGER.debug("获取到的类名" + serviceClass.getName());
+        LOGGER.debug("获取到的方法名" + "add");
+        for (Class<?> parameterType : parameterTypes) {
+            LOGGER.debug(parameterType.getName());
+        }
+        for (Object parameter : parameters) {
+            LOGGER.debug(parameter.toString());
+        }
+        FastClass serviceFastClass = FastClass.create(serviceClass);
+        FastMethod serviceFastMethod = serviceFastClass.getMethod("add", parameterTypes);
+        return serviceFastMethod.invoke(serviceBean, parameters);
+    }
+
+    //携带完整签名的请求
+    @Benchmark
+    public Object signatureLookup() throws Exception {
+        return table.find(className, "add", parameterTypes).invoke(parameters);
+    }
+
+    //只带方法id的请求
+    @Benchmark
+    public Object methodIdLookup() throws Exception {
+        return table.get(methodId).invoke(parameters);
+    }
+}
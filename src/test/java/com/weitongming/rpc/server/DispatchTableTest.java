@@ -0,0 +1,82 @@
+package com.weitongming.rpc.server;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * 分发表在构造时解析全部服务方法，之后按签名或下标查表即可调用
+ * 每次调用的开销对比见DispatchBenchmark
+ * @author tim.wei
+ */
+public class DispatchTableTest {
+
+    public interface Calculator {
+        int add(int a, int b);
+
+        long now();
+
+        String echo(String text);
+    }
+
+    @RpcService(Calculator.class)
+    public static class CalculatorImpl implements Calculator {
+        public int add(int a, int b) {
+            return a + b;
+        }
+
+        public long now() {
+            return 42;
+        }
+
+        public String echo(String text) {
+            return text;
+        }
+    }
+
+    static DispatchTable table() {
+        Map<String, Object> handlerMap = new HashMap<String, Object>();
+        handlerMap.put(Calculator.class.getName(), new CalculatorImpl());
+        return new DispatchTable(handlerMap);
+    }
+
+    @Test
+    public void resolvesEveryMethodOnce() throws Exception {
+        DispatchTable table = table();
+        assertEquals(3, table.size());
+        ServiceMethod add = table.find(Calculator.class.getName(), "add", new Class<?>[]{int.class, int.class});
+        assertSame(add, table.get(add.getId()));
+        assertSame(add, table.find(Calculator.class.getName(), "add", new Class<?>[]{int.class, int.class}));
+        assertEquals(5, add.invoke(new Object[]{2, 3}));
+        assertEquals(Calculator.class.getName(), table.getServiceStats().keySet().iterator().next());
+    }
+
+    @Test
+    public void noArgumentMethodsResolveWithNullParameterTypes() throws Exception {
+        //无参方法的参数类型经protostuff传输后为null
+        ServiceMethod now = table().find(Calculator.class.getName(), "now", null);
+        assertEquals(42L, now.invoke(null));
+    }
+
+    @Test
+    public void unknownMethodsAreNull() {
+        DispatchTable table = table();
+        assertNull(table.find(Calculator.class.getName(), "add", new Class<?>[]{long.class, long.class}));
+        assertNull(table.find(Calculator.class.getName(), "missing", null));
+        assertNull(table.find("demo.Missing", "add", new Class<?>[]{int.class, int.class}));
+        assertNull(table.find(null, null, null));
+    }
+
+    @Test
+    public void sharedExecutorUnlessAnnotated() {
+        ServiceMethod echo = table().find(Calculator.class.getName(), "echo", new Class<?>[]{String.class});
+        assertSame(ServiceExecutor.SHARED, echo.getExecutor());
+        assertEquals(Collections.singleton(Calculator.class.getName()), table().getServiceStats().keySet());
+    }
+}
@@ -0,0 +1,138 @@
+package com.weitongming.rpc.server;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 公平队列的出队顺序：交互类优先，其余按调用方加权公平排队，单线程验证
+ * @author tim.wei
+ */
+public class FairQueueTest {
+
+    private static final class Task implements Runnable, FairQueue.Tagged {
+        final String caller;
+        final boolean interactive;
+
+        Task(String caller, boolean interactive) {
+            this.caller = caller;
+            this.interactive = interactive;
+        }
+
+        public String getCaller() {
+            return caller;
+        }
+
+        public boolean isInteractive() {
+            return interactive;
+        }
+
+        public void run() {
+        }
+    }
+
+    @After
+    public void resetWeights() {
+        FairQueue.setWeights(Collections.<String, Integer>emptyMap());
+    }
+
+    //前n个出队任务中各调用方的个数
+    private static Map<String, Integer> dequeue(FairQueue queue, int n) {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (int i = 0; i < n; i++) {
+            String caller = ((Task) queue.poll()).caller;
+            Integer count = counts.get(caller);
+            counts.put(caller, count == null ? 1 : count + 1);
+        }
+        return counts;
+    }
+
+    @Test
+    public void heavyCallerCannotStarveLightOne() {
+        FairQueue queue = new FairQueue(2000);
+        for (int i = 0; i < 1000; i++) {
+            queue.offer(new Task("heavy", false));
+        }
+        for (int i = 0; i < 10; i++) {
+            queue.offer(new Task("light", false));
+        }
+        //后到的调用方从当前虚拟时间开始，与积压的调用方交替出队
+        Map<String, Integer> counts = dequeue(queue, 20);
+        assertEquals(Integer.valueOf(10), counts.get("light"));
+        assertEquals(Integer.valueOf(10), counts.get("heavy"));
+    }
+
+    @Test
+    public void weightsSetTheShare() {
+        Map<String, Integer> weights = new HashMap<String, Integer>();
+        weights.put("gold", 3);
+        FairQueue.setWeights(weights);
+        FairQueue queue = new FairQueue(1000);
+        for (int i = 0; i < 400; i++) {
+            queue.offer(new Task("gold", false));
+            queue.offer(new Task("bronze", false));
+        }
+        Map<String, Integer> counts = dequeue(queue, 400);
+        assertEquals(Integer.valueOf(300), counts.get("gold"));
+        assertEquals(Integer.valueOf(100), counts.get("bronze"));
+    }
+
+    @Test
+    public void interactiveTasksGoFirst() {
+        FairQueue queue = new FairQueue(100);
+        Runnable untagged = new Runnable() {
+            public void run() {
+            }
+        };
+        queue.offer(untagged);
+        queue.offer(new Task("a", false));
+        Task first = new Task("b", true);
+        Task second = new Task("a", true);
+        queue.offer(first);
+        queue.offer(second);
+        assertSame(first, queue.peek());
+        assertSame(first, queue.poll());
+        assertSame(second, queue.poll());
+        //非交互类按到达顺序，未打标签的任务归入默认调用方
+        assertSame(untagged, queue.poll());
+        assertEquals("a", ((Task) queue.poll()).caller);
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void offerFailsAtCapacity() throws Exception {
+        FairQueue queue = new FairQueue(2);
+        assertTrue(queue.offer(new Task("a", false)));
+        assertTrue(queue.offer(new Task("b", true)));
+        assertFalse(queue.offer(new Task("c", true)));
+        assertFalse(queue.offer(new Task("c", false), 1, TimeUnit.MILLISECONDS));
+        assertEquals(0, queue.remainingCapacity());
+        queue.poll();
+        assertEquals(1, queue.remainingCapacity());
+        assertTrue(queue.offer(new Task("c", false)));
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void removeReleasesCapacityAndFlow() {
+        FairQueue queue = new FairQueue(10);
+        Task removed = new Task("a", false);
+        queue.offer(removed);
+        queue.offer(new Task("b", false));
+        assertTrue(queue.remove(removed));
+        assertFalse(queue.remove(removed));
+        assertEquals(1, queue.size());
+        assertEquals("b", ((Task) queue.poll()).caller);
+        assertEquals(0, queue.size());
+    }
+}
@@ -0,0 +1,117 @@
+package com.weitongming.rpc.server;
+
+import com.weitongming.rpc.protocol.RpcRequest;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 按排队时间判断过载，使用模拟时钟：目标5ms，周期100ms
+ * @author tim.wei
+ */
+public class QueueMonitorTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static QueueMonitor monitor() {
+        //第一次结算在100ms
+        return new QueueMonitor(5 * MS, 100 * MS, 100 * MS);
+    }
+
+    //以sojourn的排队时间在now出队一个任务
+    private static void dequeue(QueueMonitor monitor, long sojourn, long now) {
+        monitor.enqueued();
+        monitor.dequeued(sojourn, now);
+    }
+
+    @Test
+    public void entersAndLeavesDroppingState() {
+        QueueMonitor monitor = monitor();
+        //整个周期内排队时间都超过目标值
+        dequeue(monitor, 10 * MS, 50 * MS);
+        dequeue(monitor, 30 * MS, 90 * MS);
+        assertFalse(monitor.isOverloaded());
+        dequeue(monitor, 20 * MS, 100 * MS);
+        assertTrue(monitor.isOverloaded());
+        //过载时只丢弃排队超过目标值的任务
+        assertTrue(monitor.isTooLate(6 * MS));
+        assertFalse(monitor.isTooLate(4 * MS));
+        //有任务排队时拒绝新请求，队列排空后仍然接收
+        assertFalse(monitor.shouldShed());
+        monitor.enqueued();
+        assertTrue(monitor.shouldShed());
+        monitor.cancelled();
+        //下一个周期内排队时间回到目标值以下即恢复
+        dequeue(monitor, 30 * MS, 150 * MS);
+        dequeue(monitor, 2 * MS, 180 * MS);
+        assertTrue(monitor.isOverloaded());
+        dequeue(monitor, 30 * MS, 200 * MS);
+        assertFalse(monitor.isOverloaded());
+        assertFalse(monitor.isTooLate(TimeUnit.SECONDS.toNanos(1)));
+    }
+
+    @Test
+    public void burstWithinIntervalIsNotOverload() {
+        QueueMonitor monitor = monitor();
+        //突发排队，但周期内队列排空过一次
+        dequeue(monitor, 50 * MS, 20 * MS);
+        dequeue(monitor, 0, 60 * MS);
+        dequeue(monitor, 50 * MS, 100 * MS);
+        assertFalse(monitor.isOverloaded());
+        monitor.enqueued();
+        assertFalse(monitor.shouldShed());
+        //不过载时排得再久也不丢弃
+        assertFalse(monitor.isTooLate(TimeUnit.SECONDS.toNanos(1)));
+    }
+
+    @Execution(value = Execution.Mode.BULKHEAD, threads = 1, queueSize = 16)
+    private static class Default {
+    }
+
+    @Test
+    public void sheddingIsOptIn() throws Exception {
+        //未配置queueTargetMillis时不按排队时间拒绝，排队再久也执行
+        ServiceExecutor executor = ServiceExecutor.create("opt-in", Default.class.getAnnotation(Execution.class));
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(9);
+        final AtomicInteger rejected = new AtomicInteger();
+        ServiceStats stats = new ServiceStats("opt-in");
+        try {
+            executor.execute(new RpcRequest(), new Runnable() {
+                public void run() {
+                    try {
+                        blocked.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    done.countDown();
+                }
+            }, null, stats);
+            for (int i = 0; i < 8; i++) {
+                executor.execute(new RpcRequest(), new Runnable() {
+                    public void run() {
+                        done.countDown();
+                    }
+                }, new Runnable() {
+                    public void run() {
+                        rejected.incrementAndGet();
+                        done.countDown();
+                    }
+                }, stats);
+            }
+            Thread.sleep(20);
+            blocked.countDown();
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals(0, rejected.get());
+            assertFalse(executor.isOverloaded());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.weitongming.rpc.server;
+
+import com.weitongming.rpc.protocol.RpcDecoder;
+import com.weitongming.rpc.protocol.RpcEncoder;
+import com.weitongming.rpc.protocol.RpcProtocol;
+import com.weitongming.rpc.protocol.RpcRequest;
+import com.weitongming.rpc.protocol.RpcResponse;
+import com.weitongming.rpc.protocol.Serializer;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 服务端按请求格式处理：旧版本客户端的字符串id和完整签名，新版本客户端的数字id和连接内方法字典
+ * 请求和响应都经过编解码器
+ * @author tim.wei
+ */
+public class RpcHandlerTest {
+
+    public interface Calculator {
+        int add(int a, int b);
+    }
+
+    //在IO线程内执行，响应同步写出
+    @RpcService(Calculator.class)
+    @Execution(Execution.Mode.INLINE)
+    public static class CalculatorImpl implements Calculator {
+        public int add(int a, int b) {
+            return a + b;
+        }
+    }
+
+    private EmbeddedChannel server;
+
+    @Before
+    public void setup() {
+        DispatchTable table = new DispatchTable(Collections.<String, Object>singletonMap(Calculator.class.getName(), new CalculatorImpl()));
+        server = new EmbeddedChannel(new RpcDecoder(RpcRequest.class), new RpcEncoder(RpcResponse.class), new RpcHandler(table));
+    }
+
+    private static RpcRequest request(long id, int methodId, boolean signature) {
+        RpcRequest request = new RpcRequest();
+        request.setId(id);
+        request.setMethodId(methodId);
+        request.setSerializer(Serializer.PROTOSTUFF);
+        if (signature) {
+            request.setClassName(Calculator.class.getName());
+            request.setMethodName("add");
+            request.setParameterTypes(new Class<?>[]{int.class, int.class});
+        }
+        request.setParameters(new Object[]{2, 3});
+        return request;
+    }
+
+    private static ByteBuf encode(RpcRequest request) {
+        EmbeddedChannel client = new EmbeddedChannel(new RpcEncoder(RpcRequest.class));
+        client.writeOutbound(request);
+        return (ByteBuf) client.readOutbound();
+    }
+
+    //发给服务端，返回解码后的响应
+    private RpcResponse call(ByteBuf frame) {
+        server.writeInbound(frame);
+        ByteBuf out = (ByteBuf) server.readOutbound();
+        EmbeddedChannel client = new EmbeddedChannel(new RpcDecoder(RpcResponse.class));
+        client.writeInbound(out);
+        return (RpcResponse) client.readInbound();
+    }
+
+    @Test
+    public void legacyPeerGetsStringId() {
+        RpcRequest request = request(0, 0, true);
+        request.setRequestId("2f1c4a9e-7d3b-4e55-9a61-0c8f5b2d7e10");
+        request.setSerializer(RpcProtocol.LEGACY);
+        RpcResponse response = call(encode(request));
+        assertNull(response.getError());
+        assertEquals(request.getRequestId(), response.getRequestId());
+        assertEquals(0, response.getId());
+        assertEquals(5, response.getResult());
+    }
+
+    @Test
+    public void dictionaryDefinitionThenReference() {
+        ByteBuf defined = encode(request(1, 3, true));
+        ByteBuf referenced = encode(request(2, 3, false));
+        //只带方法id的请求比携带完整签名的小
+        assertTrue(referenced.readableBytes() < defined.readableBytes());
+        RpcResponse first = call(defined);
+        assertNull(first.getError());
+        assertEquals(1, first.getId());
+        assertNull(first.getRequestId());
+        RpcResponse second = call(referenced);
+        assertNull(second.getError());
+        assertEquals(2, second.getId());
+        assertEquals(first.getResult(), second.getResult());
+    }
+
+    @Test
+    public void unknownMethodIdFails() {
+        server.writeInbound(encode(request(1, 3, true)));
+        server.readOutbound();
+        //方法id未在本连接登记
+        RpcResponse response = call(encode(request(2, 4, false)));
+        assertEquals(2, response.getId());
+        assertTrue(response.getError(), response.getError().startsWith("Method not found: 4"));
+    }
+
+    @Test
+    public void dictionaryIsPerConnection() {
+        server.writeInbound(encode(request(1, 3, true)));
+        server.readOutbound();
+        setup();
+        RpcResponse response = call(encode(request(2, 3, false)));
+        assertTrue(response.getError(), response.getError().startsWith("Method not found: 3"));
+    }
+}
@@ -0,0 +1,40 @@
+package com.weitongming.rpc.server;
+
+import org.junit.Test;
+
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 共享线程池的线程数可以在运行中调整
+ * @author tim.wei
+ */
+public class RpcServerTest {
+
+    @Test
+    public void resizesSharedPool() {
+        RpcServer server = new RpcServer("127.0.0.1:0");
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) RpcServer.executor();
+        int threads = executor.getCorePoolSize();
+        try {
+            server.setSharedThreads(threads + 8);
+            assertEquals(threads + 8, executor.getCorePoolSize());
+            assertEquals(threads + 8, executor.getMaximumPoolSize());
+            server.setSharedThreads(2);
+            assertEquals(2, executor.getCorePoolSize());
+            assertEquals(2, executor.getMaximumPoolSize());
+            //已创建后排队上限不再生效
+            int remaining = executor.getQueue().remainingCapacity();
+            server.setSharedQueueCapacity(1);
+            assertEquals(remaining, executor.getQueue().remainingCapacity());
+        } finally {
+            server.setSharedThreads(threads);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveThreads() {
+        new RpcServer("127.0.0.1:0").setSharedThreads(0);
+    }
+}